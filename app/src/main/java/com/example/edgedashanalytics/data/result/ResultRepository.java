@@ -40,6 +40,9 @@ public class ResultRepository {
         }
 
         for (File resultFile : resultFiles) {
+            if (FileManager.isCheckpoint(resultFile.getName()) || FileManager.isCheckpointTemp(resultFile.getName())) {
+                continue;
+            }
             Result result = new Result(resultFile.getAbsolutePath());
             results.add(result);
         }
@@ -41,6 +41,7 @@ import com.example.edgedashanalytics.util.file.FileManager;
 import com.example.edgedashanalytics.util.hardware.PowerMonitor;
 import com.example.edgedashanalytics.util.nearby.Endpoint;
 import com.example.edgedashanalytics.util.nearby.NearbyFragment;
+import com.example.edgedashanalytics.util.video.analysis.AnalysisTools;
 import com.example.edgedashanalytics.util.video.eventhandler.ProcessingVideosEventHandler;
 import com.example.edgedashanalytics.util.video.eventhandler.RawVideosEventHandler;
 import com.example.edgedashanalytics.util.video.eventhandler.ResultEventHandler;
@@ -108,6 +109,9 @@ public class MainActivity extends AppCompatActivity implements
         FileManager.initialiseDirectories();
         storeLogsInFile();
         DashCam.setup(this);
+        AnalysisTools.preloadModels(this);
+        AnalysisTools.resumeAnalyses(this);
+        AnalysisTools.calibrateUncalibratedModels(this);
     }
 
     @Override
@@ -278,6 +282,14 @@ public class MainActivity extends AppCompatActivity implements
             Intent settingsIntent = new Intent(this, SettingsActivity.class);
             startActivity(settingsIntent);
             return true;
+        } else if (itemId == R.id.action_calibrate) {
+            Log.v(TAG, "Calibrate button clicked");
+            if (AnalysisTools.calibrateModels(this)) {
+                Toast.makeText(this, "Calibrating models", Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(this, "Cannot calibrate while analysing videos", Toast.LENGTH_SHORT).show();
+            }
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
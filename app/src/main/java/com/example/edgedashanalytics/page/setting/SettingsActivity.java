@@ -92,6 +92,14 @@ public class SettingsActivity extends AppCompatActivity {
         int simDelay = Integer.parseInt(pref.getString(c.getString(R.string.simulation_delay_key), defaultString));
         int testVideoCount = DashCam.getTestVideoCount();
         double stopDivisor = Double.parseDouble(pref.getString(c.getString(R.string.early_stop_divisor_key), "0"));
+        boolean dropFrames = pref.getBoolean(c.getString(R.string.drop_frames_key), defaultBool);
+        boolean coverageOrder = pref.getBoolean(c.getString(R.string.coverage_order_key), defaultBool);
+        boolean roiDetection = pref.getBoolean(c.getString(R.string.roi_detection_key), defaultBool);
+        float motionThreshold = Float.parseFloat(pref.getString(c.getString(R.string.motion_threshold_key), "0"));
+        int detectInterval = Integer.parseInt(pref.getString(c.getString(R.string.detect_interval_key), "1"));
+        int batchSize = Integer.parseInt(pref.getString(c.getString(R.string.batch_size_key), "1"));
+        int concurrentVideos = Integer.parseInt(pref.getString(c.getString(R.string.concurrent_videos_key), "1"));
+        boolean columnarResults = pref.getBoolean(c.getString(R.string.columnar_results_key), defaultBool);
         int batteryLevel = PowerMonitor.getBatteryLevel(c);
 
         StringJoiner prefMessage = new StringJoiner("\n  ");
@@ -113,6 +121,14 @@ public class SettingsActivity extends AppCompatActivity {
         prefMessage.add(String.format("Simulated delay: %s", simDelay));
         prefMessage.add(String.format("Test video count: %s", testVideoCount));
         prefMessage.add(String.format(Locale.ENGLISH, "Early stop divisor: %.4f", stopDivisor));
+        prefMessage.add(String.format("Drop frames: %s", dropFrames));
+        prefMessage.add(String.format("Coverage order: %s", coverageOrder));
+        prefMessage.add(String.format("Region of interest detection: %s", roiDetection));
+        prefMessage.add(String.format("Motion threshold: %s", motionThreshold));
+        prefMessage.add(String.format("Detection interval: %s", detectInterval));
+        prefMessage.add(String.format("Batch size: %s", batchSize));
+        prefMessage.add(String.format("Concurrent videos: %s", concurrentVideos));
+        prefMessage.add(String.format("Columnar results: %s", columnarResults));
         prefMessage.add(String.format("Starting battery level: %s%%", batteryLevel));
 
         Log.i(I_TAG, prefMessage.toString());
@@ -172,6 +188,14 @@ public class SettingsActivity extends AppCompatActivity {
             EditTextPreference earlyStopDivisor = findPreference(getString(R.string.early_stop_divisor_key));
             setupTextPreference(earlyStopDivisor,
                     InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL | InputType.TYPE_NUMBER_FLAG_SIGNED);
+            EditTextPreference motionThreshold = findPreference(getString(R.string.motion_threshold_key));
+            setupTextPreference(motionThreshold, InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL);
+            EditTextPreference detectInterval = findPreference(getString(R.string.detect_interval_key));
+            setupTextPreference(detectInterval, InputType.TYPE_CLASS_NUMBER);
+            EditTextPreference batchSize = findPreference(getString(R.string.batch_size_key));
+            setupTextPreference(batchSize, InputType.TYPE_CLASS_NUMBER);
+            EditTextPreference concurrentVideos = findPreference(getString(R.string.concurrent_videos_key));
+            setupTextPreference(concurrentVideos, InputType.TYPE_CLASS_NUMBER);
         }
 
         private boolean clearLogsPrompt() {
@@ -28,6 +28,10 @@ public class FileManager {
 
     private static final String VIDEO_EXTENSION = "mp4";
     private static final String RESULT_EXTENSION = "json";
+    private static final String CHECKPOINT_EXTENSION = "ckpt";
+    private static final String TEMP_EXTENSION = "tmp";
+    private static final String MANIFEST_EXTENSION = "manifest";
+    private static final String COLUMNAR_EXTENSION = "col";
     private static final String RAW_DIR_NAME = "raw";
     private static final String RESULTS_DIR_NAME = "results";
     private static final String NEARBY_DIR_NAME = ".nearby";
@@ -72,10 +76,6 @@ public class FileManager {
         return SEGMENT_RES_DIR.getAbsolutePath();
     }
 
-    static String getSegmentResDirPath(String subDir) {
-        return makeDirectory(SEGMENT_RES_DIR, subDir).getAbsolutePath();
-    }
-
     public static String getSegmentResSubDirPath(String videoName) {
         String baseVideoName = FfmpegTools.getBaseName(videoName);
         return makeDirectory(SEGMENT_RES_DIR, baseVideoName).getAbsolutePath();
@@ -125,6 +125,46 @@ public class FileManager {
         return filename.regionMatches(true, extensionStartIndex, VIDEO_EXTENSION, 0, VIDEO_EXTENSION.length());
     }
 
+    /**
+     * @return path of the checkpoint kept next to an in-progress result, see VideoAnalysis
+     */
+    public static String getCheckpointPath(String resultPath) {
+        return String.format("%s.%s", resultPath, CHECKPOINT_EXTENSION);
+    }
+
+    /**
+     * @return path that a checkpoint is written to before it replaces the previous checkpoint, its extension isn't a
+     * checkpoint's so that a partially written checkpoint is never resumed
+     */
+    public static String getCheckpointTempPath(String resultPath) {
+        return String.format("%s.%s", getCheckpointPath(resultPath), TEMP_EXTENSION);
+    }
+
+    /**
+     * @return path of the manifest of a segmented video, kept with the results of its segments, see SegmentManifest
+     */
+    static String getManifestPath(String baseVideoName) {
+        return String.format("%s/%s.%s", getSegmentResSubDirPath(baseVideoName), baseVideoName, MANIFEST_EXTENSION);
+    }
+
+    public static boolean isColumnar(String filename) {
+        int extensionStartIndex = filename.lastIndexOf('.') + 1;
+        return filename.regionMatches(true, extensionStartIndex, COLUMNAR_EXTENSION, 0, COLUMNAR_EXTENSION.length());
+    }
+
+    public static boolean isCheckpoint(String filename) {
+        int extensionStartIndex = filename.lastIndexOf('.') + 1;
+        return filename.regionMatches(true, extensionStartIndex, CHECKPOINT_EXTENSION, 0,
+                CHECKPOINT_EXTENSION.length());
+    }
+
+    public static boolean isCheckpointTemp(String filename) {
+        String checkpoint = FilenameUtils.removeExtension(filename);
+        int extensionStartIndex = filename.lastIndexOf('.') + 1;
+        return isCheckpoint(checkpoint) &&
+                filename.regionMatches(true, extensionStartIndex, TEMP_EXTENSION, 0, TEMP_EXTENSION.length());
+    }
+
     private static boolean isJson(String filename) {
         int extensionStartIndex = filename.lastIndexOf('.') + 1;
         return filename.regionMatches(true, extensionStartIndex, RESULT_EXTENSION, 0, RESULT_EXTENSION.length());
@@ -172,6 +212,13 @@ public class FileManager {
         return String.format("%s.%s", getBaseName(filename), RESULT_EXTENSION);
     }
 
+    /**
+     * @return filename of the columnar encoding of a result, see ColumnarResults
+     */
+    public static String getColumnarNameFromResultName(String filename) {
+        return String.format("%s.%s", getBaseName(filename), COLUMNAR_EXTENSION);
+    }
+
     public static String getVideoNameFromResultName(String filename) {
         return String.format("%s.%s", getBaseName(filename), VIDEO_EXTENSION);
     }
@@ -213,16 +260,6 @@ public class FileManager {
         return results;
     }
 
-    static List<String> getChildPaths(File dir) {
-        File[] files = dir.listFiles();
-
-        if (files == null) {
-            Log.e(TAG, String.format("Could not access contents of %s", dir.getAbsolutePath()));
-            return null;
-        }
-        return Arrays.stream(files).map(File::getAbsolutePath).sorted(String::compareTo).collect(Collectors.toList());
-    }
-
     public static void makeDummyResult(String filename) {
         try {
             boolean result = new File(getResultPathOrSegmentResPathFromVideoName(filename)).createNewFile();
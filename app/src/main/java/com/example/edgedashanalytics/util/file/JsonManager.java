@@ -1,36 +1,26 @@
 package com.example.edgedashanalytics.util.file;
 
-import static com.example.edgedashanalytics.page.main.MainActivity.I_TAG;
-
 import android.util.Log;
 
-import com.example.edgedashanalytics.model.Result;
-import com.example.edgedashanalytics.util.TimeManager;
 import com.example.edgedashanalytics.util.video.analysis.Frame;
 import com.example.edgedashanalytics.util.video.analysis.InnerFrame;
 import com.example.edgedashanalytics.util.video.analysis.OuterFrame;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.MapperFeature;
-import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 
-import org.apache.commons.io.FilenameUtils;
-
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
 
 public class JsonManager {
     private static final String TAG = JsonManager.class.getSimpleName();
@@ -40,93 +30,84 @@ public class JsonManager {
             .visibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY)
             .build();
     private static final ObjectWriter writer = mapper.writer();
-    private static final ObjectReader innerReader = mapper.readerFor(InnerFrame.class);
-    private static final ObjectReader outerReader = mapper.readerFor(OuterFrame.class);
-
-    public static void writeResultsToJson(String jsonFilePath, List<Frame> frames) {
-        try {
-            writer.writeValue(new FileOutputStream(jsonFilePath),
-                    frames.stream()
-                            .filter(Objects::nonNull)
-                            .sorted(Comparator.comparingInt(f -> f.frame))
-                            .collect(Collectors.toList()));
-        } catch (Exception e) {
-            Log.e(I_TAG, String.format("Failed to write results file: %s\n  %s",
-                    e.getClass().getSimpleName(), e.getMessage()));
-        }
+    // Name of Frame.frame when serialised
+    private static final String FRAME_FIELD = "frame";
+
+    /**
+     * @return generator for streaming values to a file, using the same serialisation settings as other results
+     */
+    public static JsonGenerator createGenerator(String jsonFilePath) throws IOException {
+        return mapper.getFactory().createGenerator(new FileOutputStream(jsonFilePath));
     }
 
-    public static Result mergeResults(String parentName) {
-        Instant start = Instant.now();
-        String baseName = FilenameUtils.getBaseName(parentName);
-        List<String> resultPaths = FileManager.getChildPaths(new File(FileManager.getSegmentResDirPath(baseName)));
-        Log.v(TAG, String.format("Starting merge of results of %s", baseName));
-
-        if (resultPaths == null) {
-            return null;
-        }
-
-        String outPath = String.format("%s/%s", FileManager.getResultDirPath(), parentName);
-
-        try {
-            List<Frame> frames = FileManager.isInner(baseName) ?
-                    getInnerFrames(resultPaths) : getOuterFrames(resultPaths);
-            writer.writeValue(new FileOutputStream(outPath), frames);
-
-            String time = TimeManager.getDurationString(start);
-            Log.d(I_TAG, String.format("Merged results of %s in %ss", baseName, time));
-
-            return new Result(outPath);
-        } catch (IOException e) {
-            Log.e(TAG, String.format("Results merge error: \n%s", e.getMessage()));
-        }
-        return null;
+    /**
+     * Reads every frame of a complete results file
+     *
+     * @throws IOException if the file can't be read or isn't a complete array of frames
+     */
+    public static List<Frame> readFrames(String jsonFilePath) throws IOException {
+        Class<? extends Frame> frameClass = FileManager.isInner(jsonFilePath) ? InnerFrame.class : OuterFrame.class;
+        return mapper.readerForListOf(frameClass).readValue(new File(jsonFilePath));
     }
 
-    private static List<Frame> getInnerFrames(List<String> resultPaths) throws IOException {
-        int offset = 0;
-        List<Frame> allFrames = new ArrayList<>();
-
-        for (String resultPath : resultPaths) {
-            MappingIterator<InnerFrame> map = innerReader.readValues(new FileInputStream(resultPath));
-            List<InnerFrame> frames = map.readAll();
-
-            if (frames.isEmpty()) {
-                continue;
+    /**
+     * Reads frames from a results file that may have been cut off, e.g. when the app was killed during analysis.
+     * Stops at the first incomplete frame.
+     */
+    public static List<Frame> readPartialFrames(String jsonFilePath) {
+        Class<? extends Frame> frameClass = FileManager.isInner(jsonFilePath) ? InnerFrame.class : OuterFrame.class;
+        List<Frame> frames = new ArrayList<>();
+
+        try (JsonParser parser = mapper.getFactory().createParser(new File(jsonFilePath))) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                return frames;
             }
-
-            for (InnerFrame frame : frames) {
-                frame.frame += offset;
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                frames.add(mapper.readValue(parser, frameClass));
             }
-
-            offset = frames.get(frames.size() - 1).frame + 1;
-            allFrames.addAll(frames);
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Stopped reading partial results of %s after %s frames:\n  %s",
+                    FileManager.getFilenameFromPath(jsonFilePath), frames.size(), e.getMessage()));
         }
-
-        return allFrames;
+        return frames;
     }
 
-    private static List<Frame> getOuterFrames(List<String> resultPaths) throws IOException {
-        int offset = 0;
-        List<Frame> allFrames = new ArrayList<>();
-
-        for (String resultPath : resultPaths) {
-            MappingIterator<OuterFrame> map = outerReader.readValues(new FileInputStream(resultPath));
-            List<OuterFrame> frames = map.readAll();
-
-            if (frames.isEmpty()) {
-                continue;
+    /**
+     * Copies the frames of a segment's results token by token, shifting frame indexes by the frames of earlier
+     * segments, so that only one token is held in memory at a time
+     *
+     * @param offset index of the segment's first frame in the merged results
+     * @return offset of the next segment, i.e. one after the segment's last frame
+     */
+    static int copyFrames(String resultPath, JsonGenerator generator, int offset) throws IOException {
+        int nextOffset = offset;
+
+        try (JsonParser parser = mapper.getFactory().createParser(new File(resultPath))) {
+            // Empty files are results of segments that weren't analysed
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                return offset;
             }
 
-            for (OuterFrame frame : frames) {
-                frame.frame += offset;
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                generator.writeStartObject();
+
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+
+                    if (field.equals(FRAME_FIELD)) {
+                        int frame = parser.getIntValue() + offset;
+                        generator.writeNumberField(field, frame);
+                        nextOffset = frame + 1;
+                    } else {
+                        generator.writeFieldName(field);
+                        generator.copyCurrentStructure(parser);
+                    }
+                }
+                generator.writeEndObject();
             }
-
-            offset = frames.get(frames.size() - 1).frame + 1;
-            allFrames.addAll(frames);
         }
-
-        return allFrames;
+        return nextOffset;
     }
 
     public static String writeToString(Object object) {
@@ -0,0 +1,161 @@
+package com.example.edgedashanalytics.util.file;
+
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+
+import com.example.edgedashanalytics.model.Video;
+import com.example.edgedashanalytics.util.video.FfmpegTools;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Frame counts and source time ranges of the segments of a split video, written by the device that split it.
+ * Gives the index of each segment's first frame in the merged results before any results arrive, so segments can be
+ * merged independently of each other, and frames missing from the end of an early stopped segment don't shift the
+ * frames of later segments.
+ */
+public class SegmentManifest {
+    private static final String TAG = SegmentManifest.class.getSimpleName();
+
+    final String video;
+    final List<Segment> segments;
+
+    static class Segment {
+        final String name;
+        final int totalFrames;
+        // Time range of the segment within the source video
+        final long startMillis;
+        final long endMillis;
+
+        @JsonCreator
+        Segment(@JsonProperty("name") String name,
+                @JsonProperty("totalFrames") int totalFrames,
+                @JsonProperty("startMillis") long startMillis,
+                @JsonProperty("endMillis") long endMillis) {
+            this.name = name;
+            this.totalFrames = totalFrames;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+    }
+
+    @JsonCreator
+    SegmentManifest(@JsonProperty("video") String video,
+                    @JsonProperty("segments") List<Segment> segments) {
+        this.video = video;
+        this.segments = segments;
+    }
+
+    /**
+     * Reads the frame count and duration of each segment, and writes the manifest of the video
+     *
+     * @param baseVideoName name of the video that was split, without extension
+     * @return false if a segment couldn't be read, no manifest is written then
+     */
+    public static boolean create(String baseVideoName, List<Video> segmentVideos) {
+        List<Video> sorted = new ArrayList<>(segmentVideos);
+        sorted.sort(Comparator.comparingInt(v -> FfmpegTools.getSegmentIndex(v.getName())));
+
+        List<Segment> segments = new ArrayList<>(sorted.size());
+        long startMillis = 0;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+
+        try {
+            for (Video segmentVideo : sorted) {
+                retriever.setDataSource(segmentVideo.getData());
+                String frameCount = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_FRAME_COUNT);
+                String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+
+                if (frameCount == null || duration == null) {
+                    Log.w(TAG, String.format("Could not retrieve metadata from %s", segmentVideo.getName()));
+                    return false;
+                }
+                long endMillis = startMillis + Long.parseLong(duration);
+                segments.add(new Segment(segmentVideo.getName(), Integer.parseInt(frameCount),
+                        startMillis, endMillis));
+                startMillis = endMillis;
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, String.format("Could not read segments of %s: %s\n  %s",
+                    baseVideoName, e.getClass().getSimpleName(), e.getMessage()));
+            return false;
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException e) {
+                Log.w(TAG, String.format("Could not release retriever:\n  %s", e.getMessage()));
+            }
+        }
+
+        return new SegmentManifest(baseVideoName, segments).write();
+    }
+
+    /**
+     * @return manifest of the video, or null if there is no readable manifest
+     */
+    static SegmentManifest read(String baseVideoName) {
+        File file = new File(FileManager.getManifestPath(baseVideoName));
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            String json = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+            return (SegmentManifest) JsonManager.readFromString(json, SegmentManifest.class);
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Could not read manifest of %s:\n  %s", baseVideoName, e.getMessage()));
+            return null;
+        }
+    }
+
+    private boolean write() {
+        File file = new File(FileManager.getManifestPath(video));
+        String json = JsonManager.writeToString(this);
+
+        if (json == null) {
+            Log.w(TAG, String.format("Could not serialise manifest of %s", video));
+            return false;
+        }
+
+        try {
+            FileUtils.writeStringToFile(file, json, StandardCharsets.UTF_8);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Could not write manifest of %s:\n  %s", video, e.getMessage()));
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the manifest once the merged results have been written
+     */
+    void delete() {
+        File file = new File(FileManager.getManifestPath(video));
+
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, String.format("Could not delete manifest of %s", video));
+        }
+    }
+
+    /**
+     * @return index of the segment's first frame in the merged results
+     */
+    int getFrameOffset(int index) {
+        int offset = 0;
+
+        for (int i = 0; i < index; i++) {
+            offset += segments.get(i).totalFrames;
+        }
+        return offset;
+    }
+}
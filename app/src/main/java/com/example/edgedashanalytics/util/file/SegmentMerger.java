@@ -0,0 +1,280 @@
+package com.example.edgedashanalytics.util.file;
+
+import static com.example.edgedashanalytics.page.main.MainActivity.I_TAG;
+
+import android.util.Log;
+
+import com.example.edgedashanalytics.model.Result;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Merges the results of a video's segments as they arrive, in any order.
+ * If the video has a {@link SegmentManifest}, each segment's frame offset is known up front, so each segment is
+ * rewritten into its own part on a fork-join pool as soon as it arrives, and the parts are concatenated once every
+ * segment has arrived.
+ * Otherwise each segment's offset follows from the last frame of the previous segment, so each time the segments up to
+ * some index have all arrived, they are appended to the merged results in order.
+ * Either way, most of the merge happens while waiting for the last segments instead of after them.
+ * Results are merged into a temporary file, which is moved into the results directory once every segment has been
+ * merged.
+ */
+public class SegmentMerger {
+    private static final String TAG = SegmentMerger.class.getSimpleName();
+
+    private final String parentName;
+    private final String[] segmentPaths;
+    private final File tempFile;
+    // Null if offsets have to be found from the results of previous segments
+    private final SegmentManifest manifest;
+    // Rewrites of each segment into its part, resulting in its number of frames, only used with a manifest
+    private final List<Future<Integer>> parts;
+
+    private JsonGenerator generator = null;
+    private int received = 0;
+    // Index of the first segment that hasn't been appended
+    private int nextSegment = 0;
+    // Index of the first frame of the next segment in the merged results
+    private int frameOffset = 0;
+    private long mergeNanos = 0;
+    private Instant firstArrival = null;
+
+    /**
+     * @param parentName filename of the merged results
+     */
+    public SegmentMerger(String parentName, int segmentCount) {
+        this.parentName = parentName;
+        this.segmentPaths = new String[segmentCount];
+        // Kept with the results of the segments, so that it is cleaned up with them
+        this.tempFile = new File(FileManager.getSegmentResSubDirPath(parentName),
+                String.format("%s.part", parentName));
+
+        SegmentManifest manifest = SegmentManifest.read(FilenameUtils.getBaseName(parentName));
+        if (manifest != null && manifest.segments.size() != segmentCount) {
+            Log.w(TAG, String.format("Manifest of %s has %s segments instead of %s",
+                    parentName, manifest.segments.size(), segmentCount));
+            manifest = null;
+        }
+        this.manifest = manifest;
+        this.parts = manifest != null ? new ArrayList<>(Collections.nCopies(segmentCount, null)) : null;
+    }
+
+    /**
+     * Records the arrival of a segment's results, and merges every segment that can be merged so far
+     *
+     * @param index      index of the segment within the video, starting at 0
+     * @param resultPath path of the segment's results
+     * @return merged results once every segment has been merged, otherwise null
+     * @throws IOException if the merged results couldn't be written, the merge can't continue
+     */
+    public synchronized Result add(int index, String resultPath) throws IOException {
+        if (index < 0 || index >= segmentPaths.length) {
+            Log.w(TAG, String.format("Segment %s of %s is out of range", index, parentName));
+            return null;
+        }
+        if (segmentPaths[index] != null) {
+            Log.w(TAG, String.format("Received segment %s of %s again", index, parentName));
+            return null;
+        }
+        if (firstArrival == null) {
+            firstArrival = Instant.now();
+        }
+        segmentPaths[index] = resultPath;
+        received++;
+
+        if (manifest != null) {
+            int offset = manifest.getFrameOffset(index);
+            parts.set(index, ForkJoinPool.commonPool().submit(() -> rewrite(resultPath, getPartFile(index), offset)));
+            return isComplete() ? concatenateParts() : null;
+        }
+
+        appendPrefix();
+        return isComplete() ? finish() : null;
+    }
+
+    public synchronized boolean isComplete() {
+        return received == segmentPaths.length;
+    }
+
+    private File getPartFile(int index) {
+        return new File(String.format(Locale.ENGLISH, "%s.%d", tempFile.getAbsolutePath(), index));
+    }
+
+    /**
+     * Rewrites a segment's frames into a part of its own, with frame indexes shifted by the offset
+     *
+     * @return number of frames in the segment's results
+     */
+    private static int rewrite(String resultPath, File partFile, int offset) throws IOException {
+        try (JsonGenerator partGenerator = JsonManager.createGenerator(partFile.getAbsolutePath())) {
+            partGenerator.writeStartArray();
+            JsonManager.copyFrames(resultPath, partGenerator, offset);
+            int frames = partGenerator.getOutputContext().getEntryCount();
+            partGenerator.writeEndArray();
+            return frames;
+        }
+    }
+
+    /**
+     * Waits for the remaining rewrites, then joins the parts into a single array by copying the contents of each
+     * part between its brackets
+     */
+    private Result concatenateParts() throws IOException {
+        long start = System.nanoTime();
+
+        try (FileChannel out = new FileOutputStream(tempFile).getChannel()) {
+            out.write(ByteBuffer.wrap(new byte[]{'['}));
+            boolean first = true;
+
+            for (int i = 0; i < parts.size(); i++) {
+                int frames = awaitPart(i);
+                Log.v(TAG, String.format("Segment %s of %s has results for %s of %s frames",
+                        i, parentName, frames, manifest.segments.get(i).totalFrames));
+                File partFile = getPartFile(i);
+                if (appendElements(partFile, out, first)) {
+                    first = false;
+                }
+                Files.delete(partFile.toPath());
+            }
+            out.write(ByteBuffer.wrap(new byte[]{']'}));
+        }
+        mergeNanos += System.nanoTime() - start;
+
+        return moveToResults();
+    }
+
+    /**
+     * Copies the elements of a part's array, i.e. everything between its brackets, to the end of the merged array
+     *
+     * @param first whether no elements have been written to the merged array yet, no separator is written then
+     * @return false if the part is empty
+     */
+    static boolean appendElements(File partFile, FileChannel out, boolean first) throws IOException {
+        try (FileChannel in = FileChannel.open(partFile.toPath())) {
+            // Parts are written without whitespace, an empty part is only its brackets
+            long size = in.size();
+            if (size <= 2) {
+                return false;
+            }
+            if (!first) {
+                out.write(ByteBuffer.wrap(new byte[]{','}));
+            }
+            long position = 1;
+            while (position < size - 1) {
+                position += in.transferTo(position, size - 1 - position, out);
+            }
+            return true;
+        }
+    }
+
+    private int awaitPart(int index) throws IOException {
+        try {
+            return parts.get(index).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted while merging segment %s", index));
+        }
+    }
+
+    /**
+     * Appends every segment that follows the segments already appended without a gap
+     */
+    private void appendPrefix() throws IOException {
+        long start = System.nanoTime();
+        int appended = 0;
+
+        while (nextSegment < segmentPaths.length && segmentPaths[nextSegment] != null) {
+            if (generator == null) {
+                generator = JsonManager.createGenerator(tempFile.getAbsolutePath());
+                generator.writeStartArray();
+            }
+            frameOffset = JsonManager.copyFrames(segmentPaths[nextSegment], generator, frameOffset);
+            nextSegment++;
+            appended++;
+        }
+        mergeNanos += System.nanoTime() - start;
+
+        if (appended > 0) {
+            Log.v(TAG, String.format("Appended %s segments of %s, %s of %s merged",
+                    appended, parentName, nextSegment, segmentPaths.length));
+        }
+    }
+
+    private Result finish() throws IOException {
+        long start = System.nanoTime();
+        generator.writeEndArray();
+        generator.close();
+        generator = null;
+        mergeNanos += System.nanoTime() - start;
+
+        return moveToResults();
+    }
+
+    private Result moveToResults() throws IOException {
+        File outFile = new File(FileManager.getResultDirPath(), parentName);
+        Files.move(tempFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        if (manifest != null) {
+            manifest.delete();
+        }
+
+        Log.d(I_TAG, String.format(Locale.ENGLISH, "Merged results of %s in %.3fs, %.3fs after the first segment",
+                parentName, mergeNanos / 1e9, Duration.between(firstArrival, Instant.now()).toMillis() / 1000.0));
+        return new Result(outFile.getAbsolutePath());
+    }
+
+    /**
+     * Discards the partially merged results, e.g. after a write error
+     */
+    public synchronized void abort() {
+        if (generator != null) {
+            try {
+                generator.close();
+            } catch (IOException e) {
+                Log.w(TAG, String.format("Failed to close merged results of %s:\n  %s", parentName, e.getMessage()));
+            }
+            generator = null;
+        }
+
+        if (parts != null) {
+            for (int i = 0; i < parts.size(); i++) {
+                if (parts.get(i) != null) {
+                    parts.get(i).cancel(false);
+                }
+                File partFile = getPartFile(i);
+                if (partFile.exists() && !partFile.delete()) {
+                    Log.w(TAG, String.format("Could not delete part %s of %s", i, parentName));
+                }
+            }
+        }
+
+        if (tempFile.exists() && !tempFile.delete()) {
+            Log.w(TAG, String.format("Could not delete partially merged results of %s", parentName));
+        }
+
+        if (manifest != null) {
+            manifest.delete();
+        }
+    }
+}
@@ -97,7 +97,7 @@ public class HardwareInfo {
     /**
      * @return size of available RAM in bytes
      */
-    private long getAvailRam(Context context) {
+    public static long getAvailRam(Context context) {
         ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
         ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
         activityManager.getMemoryInfo(memInfo);
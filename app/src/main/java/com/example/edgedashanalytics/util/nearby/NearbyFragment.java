@@ -32,15 +32,18 @@ import com.example.edgedashanalytics.page.setting.SettingsActivity;
 import com.example.edgedashanalytics.util.TimeManager;
 import com.example.edgedashanalytics.util.dashcam.DashCam;
 import com.example.edgedashanalytics.util.file.FileManager;
-import com.example.edgedashanalytics.util.file.JsonManager;
+import com.example.edgedashanalytics.util.file.SegmentManifest;
+import com.example.edgedashanalytics.util.file.SegmentMerger;
 import com.example.edgedashanalytics.util.hardware.HardwareInfo;
 import com.example.edgedashanalytics.util.hardware.PowerMonitor;
 import com.example.edgedashanalytics.util.nearby.Algorithm.AlgorithmKey;
 import com.example.edgedashanalytics.util.nearby.Message.Command;
 import com.example.edgedashanalytics.util.video.FfmpegTools;
 import com.example.edgedashanalytics.util.video.VideoManager;
-import com.example.edgedashanalytics.util.video.analysis.InnerAnalysis;
-import com.example.edgedashanalytics.util.video.analysis.OuterAnalysis;
+import com.example.edgedashanalytics.util.video.analysis.AnalysisEngine;
+import com.example.edgedashanalytics.util.video.analysis.AnalysisTools;
+import com.example.edgedashanalytics.util.video.analysis.CancellationToken;
+import com.example.edgedashanalytics.util.video.analysis.ColumnarResults;
 import com.example.edgedashanalytics.util.video.analysis.VideoAnalysis;
 import com.google.android.gms.nearby.Nearby;
 import com.google.android.gms.nearby.connection.AdvertisingOptions;
@@ -69,16 +72,15 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -96,20 +98,21 @@ public abstract class NearbyFragment extends Fragment {
     private final ReceiveFilePayloadCallback payloadCallback = new ReceiveFilePayloadCallback();
     private final Queue<Message> transferQueue = new LinkedList<>();
     private final LinkedHashMap<String, Endpoint> discoveredEndpoints = new LinkedHashMap<>();
-    private final ExecutorService analysisExecutor = Executors.newSingleThreadExecutor();
-    private final List<Future<?>> analysisFutures = new ArrayList<>();
     private final ScheduledExecutorService downloadTaskExecutor = Executors.newSingleThreadScheduledExecutor();
     private final LinkedHashMap<String, Instant> waitTimes = new LinkedHashMap<>();
+    // Merges of segmented videos that are waiting for results, by merged results filename
+    private final Map<String, SegmentMerger> segmentMergers = new ConcurrentHashMap<>();
 
     private ConnectionsClient connectionsClient;
     protected DeviceListAdapter deviceAdapter;
     protected String localName = null;
     private Listener listener;
     private boolean verbose;
+    // Return results to the master in the columnar encoding instead of JSON
+    private boolean columnarResults;
     private boolean master = false;
     private boolean isMasterFastest = false;
-    private InnerAnalysis innerAnalysis;
-    private OuterAnalysis outerAnalysis;
+    private AnalysisEngine analysisEngine;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -123,13 +126,13 @@ public abstract class NearbyFragment extends Fragment {
 
         SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(activity);
         verbose = pref.getBoolean(getString(R.string.verbose_output_key), false);
+        columnarResults = pref.getBoolean(getString(R.string.columnar_results_key), false);
 
         deviceAdapter = new DeviceListAdapter(listener, activity, discoveredEndpoints);
         connectionsClient = Nearby.getConnectionsClient(activity);
         setLocalName(activity);
 
-        innerAnalysis = new InnerAnalysis(activity);
-        outerAnalysis = new OuterAnalysis(activity);
+        analysisEngine = AnalysisEngine.getInstance(activity);
     }
 
     @Override
@@ -215,6 +218,12 @@ public abstract class NearbyFragment extends Fragment {
                                 requestHardwareInfo(endpointId);
                                 deviceAdapter.notifyDataSetChanged();
                             }
+
+                            Context context = getContext();
+                            if (context != null) {
+                                // Videos may arrive as soon as devices are connected
+                                AnalysisTools.preloadModels(context);
+                            }
                             break;
                         case ConnectionsStatusCodes.STATUS_CONNECTION_REJECTED:
                             // The connection was rejected by one or both sides.
@@ -525,6 +534,28 @@ public abstract class NearbyFragment extends Fragment {
         }
     }
 
+    /**
+     * Encodes a result in the cache directory, so that the encoding never shows up among the results
+     *
+     * @return columnar encoding of the result, or the result itself if it couldn't be encoded
+     */
+    private Result toColumnar(Result result) {
+        Context context = getContext();
+        if (context == null) {
+            Log.e(TAG, "No context");
+            return result;
+        }
+        String columnarPath = new File(context.getCacheDir(),
+                FileManager.getColumnarNameFromResultName(result.getName())).getAbsolutePath();
+
+        if (!ColumnarResults.fromJson(result.getData(), columnarPath)) {
+            return result;
+        }
+        Log.d(TAG, String.format("Encoded %s in %s bytes instead of %s", result.getName(),
+                new File(columnarPath).length(), new File(result.getData()).length()));
+        return new Result(columnarPath);
+    }
+
     private void splitAndQueue(String videoPath, int segNum) {
         Context context = getContext();
         if (context == null) {
@@ -555,15 +586,28 @@ public abstract class NearbyFragment extends Fragment {
             return;
         }
 
+        // Lets results be merged with known frame offsets, and in parallel, see SegmentMerger
+        if (!SegmentManifest.create(baseVideoName, videos)) {
+            Log.w(I_TAG, String.format("Could not create manifest of %s, segments will be merged in order",
+                    baseVideoName));
+        }
+
         for (Video segment : videos) {
             queueVideo(segment, Command.SEGMENT);
         }
     }
 
+    /**
+     * @return filename of the merged results of the video that a segment was split from
+     */
+    private static String getParentResultName(String segmentName) {
+        return FileManager.getResultNameFromVideoName(FfmpegTools.getBaseName(segmentName));
+    }
+
     private void handleSegment(String resultName, String fromEndpointId) {
         String segmentName = FileManager.getVideoNameFromResultName(resultName);
         String baseName = FfmpegTools.getBaseName(resultName);
-        String parentName = String.format("%s.%s", baseName, FilenameUtils.getExtension(resultName));
+        String parentName = getParentResultName(resultName);
         String videoName = FileManager.getVideoNameFromResultName(parentName);
 
         Instant end = Instant.now();
@@ -574,17 +618,23 @@ public abstract class NearbyFragment extends Fragment {
             sendAdjMessage(adjust, fromEndpointId);
         }
 
-        List<Result> results = FileManager.getResultsFromDir(FileManager.getSegmentResSubDirPath(resultName));
         int resultTotal = FfmpegTools.getSegmentCount(resultName);
+        String resultPath = FileManager.getResultPathOrSegmentResPathFromVideoName(resultName);
+        SegmentMerger merger = segmentMergers.computeIfAbsent(parentName, k -> new SegmentMerger(k, resultTotal));
+        Result result;
 
-        if (results == null) {
-            Log.d(TAG, "Couldn't retrieve results");
+        try {
+            result = merger.add(FfmpegTools.getSegmentIndex(resultName), resultPath);
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Results merge error: \n%s", e.getMessage()));
+            merger.abort();
+            segmentMergers.remove(parentName);
             return;
         }
 
-        if (results.size() == resultTotal) {
+        if (result != null) {
             Log.d(TAG, String.format("Received all result segments of %s", baseName));
-            Result result = JsonManager.mergeResults(parentName);
+            segmentMergers.remove(parentName);
 
             EventBus.getDefault().post(new AddResultEvent(result));
             EventBus.getDefault().post(new RemoveByNameEvent(videoName, Type.RAW));
@@ -623,7 +673,7 @@ public abstract class NearbyFragment extends Fragment {
         Log.v(TAG, String.format("nextTransfer with selected algorithm: %s", algorithm.name()));
 
         List<Endpoint> endpoints = getConnectedEndpoints();
-        boolean localFree = analysisFutures.stream().allMatch(Future::isDone);
+        boolean localFree = analysisEngine.isIdle();
         boolean anyFreeEndpoint = endpoints.stream().anyMatch(Endpoint::isInactive);
 
         if (localProcess && endpoints.size() == 1 && algorithm.equals(AlgorithmKey.max_capacity)) {
@@ -746,53 +796,89 @@ public abstract class NearbyFragment extends Fragment {
         EventBus.getDefault().post(new RemoveEvent(video, Type.RAW));
 
         String outPath = FileManager.getResultPathOrSegmentResPathFromVideoName(video.getName());
-        Future<?> future = analysisExecutor.submit(analysisRunnable(video, outPath, returnResult));
-        analysisFutures.add(future);
+        analysisEngine.submit(video, outPath, new CancellationToken(), analysisListener(video, outPath, returnResult));
     }
 
-    private Runnable analysisRunnable(Video video, String outPath, boolean returnResult) {
-        return () -> {
-            String videoName = video.getName();
+    private AnalysisEngine.Listener analysisListener(Video video, String outPath, boolean returnResult) {
+        String videoName = video.getName();
 
-            if (waitTimes.containsKey(videoName)) {
-                Instant start = waitTimes.remove(videoName);
-                String time = TimeManager.getDurationString(start, false);
+        return new AnalysisEngine.Listener() {
+            @Override
+            public void onStart() {
+                if (waitTimes.containsKey(videoName)) {
+                    Instant start = waitTimes.remove(videoName);
+                    String time = TimeManager.getDurationString(start, false);
 
-                Log.i(I_TAG, String.format("Wait time of %s: %ss", videoName, time));
-            } else {
-                Log.e(TAG, String.format("Could not record wait time of %s", videoName));
+                    Log.i(I_TAG, String.format("Wait time of %s: %ss", videoName, time));
+                } else {
+                    Log.e(TAG, String.format("Could not record wait time of %s", videoName));
+                }
             }
 
-            VideoAnalysis videoAnalysis = video.isInner() ? innerAnalysis : outerAnalysis;
-            videoAnalysis.analyse(video.getData(), outPath);
+            @Override
+            public void onComplete() {
+                onAnalysisComplete(video, outPath, returnResult);
+            }
+
+            @Override
+            public void onFailed() {
+                onAnalysisFailed(video, returnResult);
+            }
+        };
+    }
 
-            Result result = new Result(outPath);
-            EventBus.getDefault().post(new RemoveEvent(video, Type.PROCESSING));
+    private void onAnalysisComplete(Video video, String outPath, boolean returnResult) {
+        String videoName = video.getName();
+        Result result = new Result(outPath);
+        EventBus.getDefault().post(new RemoveEvent(video, Type.PROCESSING));
 
-            if (!FfmpegTools.isSegment(result.getName())) {
-                EventBus.getDefault().post(new AddResultEvent(result));
-                Instant end = Instant.now();
+        if (!FfmpegTools.isSegment(result.getName())) {
+            EventBus.getDefault().post(new AddResultEvent(result));
+            Instant end = Instant.now();
 
-                if (master) {
-                    TimeManager.printTurnaroundTime(videoName, end);
-                    double adjust = VideoAnalysis.getEsdAdjust(videoName, end, isConnected());
+            if (master) {
+                TimeManager.printTurnaroundTime(videoName, end);
+                double adjust = VideoAnalysis.getEsdAdjust(videoName, end, isConnected());
 
-                    if (adjust != 0) {
-                        VideoAnalysis.adjustEsd(adjust);
-                    }
+                if (adjust != 0) {
+                    VideoAnalysis.adjustEsd(adjust);
                 }
             }
+        }
+
+        if (returnResult) {
+            Result returned = columnarResults ? toColumnar(result) : result;
+            returnContent(returned);
 
-            if (returnResult) {
-                returnContent(result);
-            } else if (FfmpegTools.isSegment(result.getName())) {
-                // Master completed analysing a segment
-                handleSegment(result.getName(), null);
-                nextTransfer();
+            // The payload keeps the file open while it is sent, so the encoding can be removed straight away
+            if (returned != result && !new File(returned.getData()).delete()) {
+                Log.w(TAG, String.format("Could not delete %s", returned.getName()));
             }
+        } else if (FfmpegTools.isSegment(result.getName())) {
+            // Master completed analysing a segment
+            handleSegment(result.getName(), null);
+            nextTransfer();
+        }
 
-            PowerMonitor.printBatteryLevel(getContext());
-        };
+        PowerMonitor.printBatteryLevel(getContext());
+    }
+
+    /**
+     * Drops a video whose analysis wrote no results, there is nothing to return or merge
+     */
+    private void onAnalysisFailed(Video video, boolean returnResult) {
+        String videoName = video.getName();
+        Log.e(I_TAG, String.format("No results for %s", videoName));
+        EventBus.getDefault().post(new RemoveEvent(video, Type.PROCESSING));
+
+        if (!returnResult && FfmpegTools.isSegment(videoName)) {
+            // The merged results can never be completed without this segment
+            SegmentMerger merger = segmentMergers.remove(getParentResultName(videoName));
+            if (merger != null) {
+                merger.abort();
+            }
+            nextTransfer();
+        }
     }
 
     @Override
@@ -1015,11 +1101,24 @@ public abstract class NearbyFragment extends Fragment {
                     String resultsDestPath = FileManager.getResultPathOrSegmentResPathFromVideoName(resultName);
                     File resultsDest = new File(resultsDestPath);
 
-                    try {
-                        Files.move(payloadFile.toPath(), resultsDest.toPath(), REPLACE_EXISTING);
-                    } catch (IOException e) {
-                        Log.e(I_TAG, String.format("processFilePayload copy error: \n%s", e.getMessage()));
-                        return;
+                    if (FileManager.isColumnar(filename)) {
+                        // Everything after receiving the results expects JSON
+                        boolean converted = ColumnarResults.toJson(payloadFile.getAbsolutePath(), resultsDestPath);
+
+                        if (!payloadFile.delete()) {
+                            Log.w(TAG, String.format("Could not delete received %s", filename));
+                        }
+                        if (!converted) {
+                            Log.e(I_TAG, String.format("Could not convert %s to JSON", filename));
+                            return;
+                        }
+                    } else {
+                        try {
+                            Files.move(payloadFile.toPath(), resultsDest.toPath(), REPLACE_EXISTING);
+                        } catch (IOException e) {
+                            Log.e(I_TAG, String.format("processFilePayload copy error: \n%s", e.getMessage()));
+                            return;
+                        }
                     }
 
                     if (FfmpegTools.isSegment(resultName)) {
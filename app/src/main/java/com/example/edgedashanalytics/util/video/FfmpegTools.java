@@ -89,6 +89,20 @@ public class FfmpegTools {
         return Integer.parseInt(countString);
     }
 
+    /**
+     * @return index of the segment within its video, starting at 0, or -1 if it isn't a segment
+     */
+    public static int getSegmentIndex(String segmentName) {
+        String baseName = FilenameUtils.getBaseName(segmentName);
+        String[] components = baseName.split(String.format("%c", SEGMENT_SEPARATOR));
+
+        if (components.length < 3) {
+            return -1;
+        }
+
+        return Integer.parseInt(components[1]);
+    }
+
     public static boolean isSegment(String filename) {
         return filename.contains(String.format("%c", SEGMENT_SEPARATOR));
     }
@@ -0,0 +1,47 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import java.io.File;
+
+/**
+ * State of a single analysis job, so that videos with different resolutions, deadlines and early stop divisors can be
+ * analysed at the same time. Jobs only share immutable model resources, see {@link ModelPool}.
+ */
+class AnalysisContext {
+    final String inPath;
+    final String outPath;
+    final String videoName;
+    final int totalFrames;
+
+    final float scaleFactor;
+    // Size of frames after scaling, as they are passed to processFrame
+    final int scaledWidth;
+    final int scaledHeight;
+
+    // Early stop divisor when the job started, later adjustments only apply to later jobs
+    final double stopDivisor;
+    final long timeout;
+
+    final CancellationToken token;
+    final PipelineStats stats = PipelineStats.forVideo();
+
+    AnalysisContext(String inPath, String outPath, int totalFrames, int videoWidth, int videoHeight,
+                    float scaleFactor, double stopDivisor, long timeout, CancellationToken token) {
+        this.inPath = inPath;
+        this.outPath = outPath;
+        this.videoName = new File(inPath).getName();
+        this.totalFrames = totalFrames;
+        this.scaleFactor = scaleFactor;
+        this.scaledWidth = (int) (videoWidth / scaleFactor);
+        this.scaledHeight = (int) (videoHeight / scaleFactor);
+        this.stopDivisor = stopDivisor;
+        this.timeout = timeout;
+        this.token = token;
+    }
+
+    /**
+     * @return true if the job should run to completion, i.e. frames are never dropped for the deadline
+     */
+    boolean isComplete() {
+        return stopDivisor < 0;
+    }
+}
@@ -0,0 +1,303 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import static com.example.edgedashanalytics.page.main.MainActivity.I_TAG;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import com.example.edgedashanalytics.R;
+import com.example.edgedashanalytics.model.Video;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs all analysis on the device, both of local videos and of videos received from other devices.
+ * Limits the number of videos analysed at once, and the number of threads that their analysis and interpreter
+ * threads use in total, so that overlapping jobs don't oversubscribe the cores.
+ * Analysing several videos at once keeps the cores busy while each video waits on decoding, each video then gets an
+ * equal share of the thread budget, and its frame threads are limited to the model instances that other videos
+ * aren't using. The number of videos is either set in preferences or chosen by {@link ConcurrencyTuner}.
+ * Calibration runs exclusively, as it needs every core to itself.
+ */
+public class AnalysisEngine {
+    private static final String TAG = AnalysisEngine.class.getSimpleName();
+    // Each video needs at least a decoding thread and an analysis thread
+    private static final int MIN_THREADS_PER_VIDEO = 2;
+    // Weight of the latest job in the average job duration
+    private static final double DURATION_WEIGHT = 0.3;
+
+    private static AnalysisEngine instance = null;
+
+    private final Context appContext;
+    private final InnerAnalysis innerAnalysis;
+    private final OuterAnalysis outerAnalysis;
+    private final ThreadPoolExecutor executor;
+    // Device-wide budget of analysis threads times interpreter threads
+    private final int threadBudget;
+    private final Semaphore threads;
+    // Null if the number of concurrent videos is set in preferences
+    private final ConcurrencyTuner tuner;
+
+    // Pool instances claimed by the frame threads of running videos, by analysis, see ModelPool
+    private final Map<VideoAnalysis, Integer> claimed = new HashMap<>();
+    private final AtomicInteger running = new AtomicInteger(0);
+    private volatile int concurrentVideos;
+    private volatile long averageMillis = 0;
+
+    public interface Listener {
+        /**
+         * Called on the analysis thread once the job has left the queue
+         */
+        default void onStart() {
+        }
+
+        /**
+         * Called on the analysis thread once the results have been written, or the job was cancelled
+         */
+        void onComplete();
+
+        /**
+         * Called on the analysis thread instead of {@link #onComplete()} if no results were written, e.g. because the
+         * models couldn't be loaded
+         */
+        void onFailed();
+    }
+
+    private AnalysisEngine(Context context) {
+        this.appContext = context.getApplicationContext();
+        this.innerAnalysis = new InnerAnalysis(appContext);
+        this.outerAnalysis = new OuterAnalysis(appContext);
+        this.threadBudget = Runtime.getRuntime().availableProcessors();
+        this.threads = new Semaphore(threadBudget, true);
+
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(appContext);
+        int configured = Integer.parseInt(pref.getString(appContext.getString(R.string.concurrent_videos_key), "1"));
+
+        if (configured > 0) {
+            this.tuner = null;
+            this.concurrentVideos = Math.min(configured, threadBudget);
+        } else {
+            this.tuner = new ConcurrencyTuner(threadBudget / MIN_THREADS_PER_VIDEO, getAnalysedFrames());
+            this.concurrentVideos = tuner.getLevel();
+        }
+        this.executor = new ThreadPoolExecutor(concurrentVideos, concurrentVideos, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+
+        appContext.registerComponentCallbacks(BitmapPool.getInstance());
+    }
+
+    public static synchronized AnalysisEngine getInstance(Context context) {
+        if (instance == null) {
+            instance = new AnalysisEngine(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Queues the analysis of a video, jobs start in submission order
+     *
+     * @param token cancels the job, whether it is queued or running
+     */
+    public Future<?> submit(Video video, String outPath, CancellationToken token, Listener listener) {
+        VideoAnalysis analysis = video.isInner() ? innerAnalysis : outerAnalysis;
+
+        Future<?> future = executor.submit(() -> {
+            running.incrementAndGet();
+            boolean success = false;
+
+            try {
+                if (!token.isCancelled()) {
+                    long start = System.nanoTime();
+                    listener.onStart();
+                    success = analyse(analysis, video, outPath, token);
+
+                    if (success) {
+                        recordDuration(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    }
+                }
+            } catch (RuntimeException e) {
+                // Would otherwise be swallowed by the future
+                Log.e(I_TAG, String.format("Analysis of %s failed: %s\n  %s",
+                        video.getName(), e.getClass().getSimpleName(), e.getMessage()));
+            } finally {
+                running.decrementAndGet();
+                if (success || token.isCancelled()) {
+                    listener.onComplete();
+                } else {
+                    listener.onFailed();
+                }
+                if (isIdle()) {
+                    // The next video may have a different resolution, so pooled frames may never be used again
+                    BitmapPool.getInstance().clear();
+                }
+                tune();
+            }
+        });
+
+        Log.d(TAG, String.format(Locale.ENGLISH, "Queued %s, %d jobs queued, %d running, ETA %.1fs",
+                video.getName(), getQueueLength(), running.get(), getEtaMillis() / 1000.0));
+        return future;
+    }
+
+    /**
+     * @return true if results were written
+     */
+    private boolean analyse(VideoAnalysis analysis, Video video, String outPath, CancellationToken token) {
+        int analysisThreads;
+        int permits;
+        try {
+            // The thread configuration is only known once the models have loaded
+            analysis.preload(appContext).get();
+
+            if (!analysis.isLoaded()) {
+                Log.e(I_TAG, String.format("Model failure, skipping analysis of %s", video.getName()));
+                return false;
+            }
+            ThreadCalibration.Config config = analysis.getThreadConfig();
+
+            // Share of the budget of each video, a video always gets at least one analysis thread
+            int share = Math.max(1, threadBudget / concurrentVideos);
+            analysisThreads = claim(analysis, Math.min(config.analysisThreads, share / config.interpreterThreads),
+                    config.analysisThreads);
+            permits = Math.min(analysisThreads * config.interpreterThreads, threadBudget);
+        } catch (ExecutionException e) {
+            Log.e(I_TAG, String.format("Model failure, skipping analysis of %s:\n  %s",
+                    video.getName(), e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+            return false;
+        } catch (InterruptedException e) {
+            Log.w(I_TAG, String.format("Interrupted analysis of %s before it started", video.getName()));
+            return false;
+        }
+
+        try {
+            threads.acquire(permits);
+        } catch (InterruptedException e) {
+            Log.w(I_TAG, String.format("Interrupted analysis of %s while waiting for threads", video.getName()));
+            unclaim(analysis, analysisThreads);
+            return false;
+        }
+
+        try {
+            return analysis.analyse(video.getData(), outPath, token, analysisThreads);
+        } finally {
+            threads.release(permits);
+            unclaim(analysis, analysisThreads);
+        }
+    }
+
+    /**
+     * Limits the frame threads of a video to the pool instances that running videos of the same analysis haven't
+     * claimed, so that frame threads don't wait on each other for instances. A video always gets one frame thread,
+     * which then waits for an instance to be released.
+     *
+     * @param poolSize number of instances in the analysis' pool
+     * @return number of frame threads claimed
+     */
+    private int claim(VideoAnalysis analysis, int wanted, int poolSize) {
+        synchronized (claimed) {
+            int used = claimed.getOrDefault(analysis, 0);
+            int count = Math.max(1, Math.min(wanted, poolSize - used));
+            claimed.put(analysis, used + count);
+            return count;
+        }
+    }
+
+    private void unclaim(VideoAnalysis analysis, int count) {
+        synchronized (claimed) {
+            claimed.put(analysis, claimed.getOrDefault(analysis, 0) - count);
+        }
+    }
+
+    /**
+     * @return total number of frames that have been through inference on this device
+     */
+    private static long getAnalysedFrames() {
+        return PipelineStats.getAggregate().getCount(PipelineStats.Stage.INFERENCE);
+    }
+
+    /**
+     * Measures throughput after each job, and changes the number of concurrent videos if the tuner chooses to
+     */
+    private void tune() {
+        if (tuner == null) {
+            return;
+        }
+        if (getQueueLength() == 0) {
+            // Slots are about to go idle, so throughput from now on doesn't reflect the number of videos
+            tuner.resetWindow(getAnalysedFrames());
+            return;
+        }
+
+        int level = tuner.update(getAnalysedFrames());
+        synchronized (executor) {
+            if (level > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(level);
+                executor.setCorePoolSize(level);
+            } else if (level < executor.getMaximumPoolSize()) {
+                // Extra threads finish their current job before exiting
+                executor.setCorePoolSize(level);
+                executor.setMaximumPoolSize(level);
+            }
+        }
+        concurrentVideos = level;
+    }
+
+    /**
+     * Runs a task once every running job has finished, and holds back jobs queued after it until it completes,
+     * e.g. for calibration
+     */
+    public Future<?> submitExclusive(Runnable task) {
+        return executor.submit(() -> {
+            threads.acquireUninterruptibly(threadBudget);
+            try {
+                task.run();
+            } finally {
+                threads.release(threadBudget);
+            }
+        });
+    }
+
+    private void recordDuration(long millis) {
+        averageMillis = averageMillis == 0 ? millis :
+                (long) (DURATION_WEIGHT * millis + (1 - DURATION_WEIGHT) * averageMillis);
+    }
+
+    /**
+     * @return number of jobs waiting to start
+     */
+    public int getQueueLength() {
+        // Jobs cancelled while queued stay in the queue until purged
+        executor.purge();
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return true if no video is being analysed or waiting to be analysed
+     */
+    public boolean isIdle() {
+        return getQueueLength() == 0 && running.get() == 0;
+    }
+
+    /**
+     * Estimated from the average duration of previous jobs, ignores how far running jobs have progressed
+     *
+     * @return estimated time until every queued and running video has been analysed, or 0 if no job has completed
+     */
+    public long getEtaMillis() {
+        int jobs = getQueueLength() + running.get();
+        int rounds = (jobs + concurrentVideos - 1) / concurrentVideos;
+        return rounds * averageMillis;
+    }
+}
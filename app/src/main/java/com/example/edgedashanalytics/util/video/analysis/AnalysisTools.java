@@ -10,59 +10,190 @@ import com.example.edgedashanalytics.event.video.Type;
 import com.example.edgedashanalytics.model.Result;
 import com.example.edgedashanalytics.model.Video;
 import com.example.edgedashanalytics.util.file.FileManager;
+import com.example.edgedashanalytics.util.video.VideoManager;
 
+import org.apache.commons.io.FilenameUtils;
 import org.greenrobot.eventbus.EventBus;
 
-import java.util.LinkedHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 public class AnalysisTools {
     private final static String TAG = AnalysisTools.class.getSimpleName();
 
-    private final static ExecutorService executor = Executors.newSingleThreadExecutor();
-    private final static LinkedHashMap<String, Future<?>> analysisFutures = new LinkedHashMap<>();
+    // Modified by the UI thread and by listeners on the engine's threads
+    private final static Map<String, Job> analysisJobs = new ConcurrentHashMap<>();
 
-    private static InnerAnalysis innerAnalysis = null;
-    private static OuterAnalysis outerAnalysis = null;
+    /**
+     * Registered before it is submitted, so that a job completing before submit returns is still removed
+     */
+    private static class Job {
+        private final CancellationToken token = new CancellationToken();
+        private volatile Future<?> future = null;
+    }
 
     public static void processVideo(Video video, Context context) {
         Log.d(TAG, String.format("Analysing %s", video.getName()));
 
-        if (innerAnalysis == null || outerAnalysis == null) {
-            innerAnalysis = new InnerAnalysis(context);
-            outerAnalysis = new OuterAnalysis(context);
-        }
-
         final String output = FileManager.getResultPathFromVideoName(video.getName());
 
-        Future<?> future = executor.submit(processRunnable(video, output));
-        analysisFutures.put(video.getData(), future);
+        Job job = new Job();
+        analysisJobs.put(video.getData(), job);
+        job.future = AnalysisEngine.getInstance(context).submit(video, output, job.token,
+                processListener(video, output, job));
 
         EventBus.getDefault().post(new AddEvent(video, Type.PROCESSING));
         EventBus.getDefault().post(new RemoveEvent(video, Type.RAW));
     }
 
-    private static Runnable processRunnable(Video video, String outPath) {
-        return () -> {
-            VideoAnalysis videoAnalysis = video.isInner() ? innerAnalysis : outerAnalysis;
-            videoAnalysis.analyse(video.getData(), outPath);
+    private static AnalysisEngine.Listener processListener(Video video, String outPath, Job job) {
+        return new AnalysisEngine.Listener() {
+            @Override
+            public void onComplete() {
+                // Leaves a later job of the same video in place
+                analysisJobs.remove(video.getData(), job);
+
+                if (job.token.isCancelled()) {
+                    return;
+                }
+
+                Result result = new Result(outPath);
+                EventBus.getDefault().post(new AddResultEvent(result));
+                EventBus.getDefault().post(new RemoveEvent(video, Type.PROCESSING));
+            }
+
+            @Override
+            public void onFailed() {
+                analysisJobs.remove(video.getData(), job);
+                // Back to the raw videos, so that analysis can be retried
+                EventBus.getDefault().post(new RemoveEvent(video, Type.PROCESSING));
+                EventBus.getDefault().post(new AddEvent(video, Type.RAW));
+            }
+        };
+    }
 
-            analysisFutures.remove(video.getData());
+    /**
+     * Resubmits videos whose analysis was interrupted, e.g. by the app being killed, so that they resume from their
+     * checkpoints. Only videos analysed on this device are resumed, as offloaded segments are sent again by the
+     * device that offloaded them.
+     */
+    public static void resumeAnalyses(Context context) {
+        File[] resultFiles = new File(FileManager.getResultDirPath()).listFiles();
+
+        if (resultFiles == null) {
+            Log.e(TAG, "Could not retrieve result files");
+            return;
+        }
 
-            Result result = new Result(outPath);
-            EventBus.getDefault().post(new AddResultEvent(result));
-            EventBus.getDefault().post(new RemoveEvent(video, Type.PROCESSING));
-        };
+        for (File file : resultFiles) {
+            if (FileManager.isCheckpointTemp(file.getName())) {
+                // Left by a crash while writing a checkpoint, the previous checkpoint is still in place
+                if (!file.delete()) {
+                    Log.w(TAG, String.format("Could not delete %s", file.getName()));
+                }
+                continue;
+            }
+            if (!FileManager.isCheckpoint(file.getName())) {
+                continue;
+            }
+            String resultPath = FilenameUtils.removeExtension(file.getAbsolutePath());
+            Checkpoint checkpoint = Checkpoint.read(resultPath);
+
+            if (checkpoint == null || checkpoint.video == null) {
+                continue;
+            }
+            String videoPath = String.format("%s/%s", FileManager.getRawDirPath(), checkpoint.video);
+
+            if (!new File(videoPath).exists()) {
+                Log.w(TAG, String.format("Cannot resume analysis of %s, video no longer exists", checkpoint.video));
+                Checkpoint.delete(resultPath);
+                continue;
+            }
+            Video video = VideoManager.getVideoFromPath(context, videoPath);
+
+            if (video != null && !analysisJobs.containsKey(video.getData())) {
+                Log.i(TAG, String.format("Resuming analysis of %s", video.getName()));
+                processVideo(video, context);
+            }
+        }
+    }
+
+    /**
+     * Loads and warms up the pose and object detection models in the background, so that the first video doesn't wait
+     * for them. Does nothing if they have already been loaded.
+     */
+    public static void preloadModels(Context context) {
+        InnerAnalysis.preloadModels(context);
+        OuterAnalysis.preloadModels(context);
+    }
+
+    /**
+     * Benchmarks the delegates of the current pose and object detection models, then calibrates their thread
+     * configurations with the selected delegates.
+     * Runs exclusively on the analysis engine, so that it doesn't compete with analysis for cores. Loaded interpreter
+     * and detector pools are then swapped for pools built with the new configuration.
+     * Only runs while no videos are queued, as videos queued behind it would wait until it finishes.
+     *
+     * @return false if videos are being analysed, calibration doesn't run then
+     */
+    public static boolean calibrateModels(Context context) {
+        Context appContext = context.getApplicationContext();
+        AnalysisEngine engine = AnalysisEngine.getInstance(appContext);
+
+        if (!engine.isIdle()) {
+            Log.w(TAG, "Skipping calibration while videos are being analysed");
+            return false;
+        }
+
+        engine.submitExclusive(() -> {
+            try {
+                // Loading competes for cores, which would skew the measurements
+                InnerAnalysis.preloadModels(appContext).get();
+                OuterAnalysis.preloadModels(appContext).get();
+            } catch (ExecutionException | InterruptedException e) {
+                Log.w(TAG, String.format("Calibrating before models have loaded:\n  %s", e.getMessage()));
+            }
+
+            InnerAnalysis.benchmarkDelegates(appContext);
+            OuterAnalysis.benchmarkDelegates(appContext);
+
+            InnerAnalysis.calibrateThreads(appContext);
+            OuterAnalysis.calibrateThreads(appContext);
+
+            InnerAnalysis.reloadModels(appContext);
+            OuterAnalysis.reloadModels(appContext);
+        });
+        return true;
+    }
+
+    /**
+     * Calibrates the current models if they haven't been calibrated on this device, e.g. at first launch or after
+     * switching models. Otherwise analysis uses the default thread configuration until calibration is requested.
+     */
+    public static void calibrateUncalibratedModels(Context context) {
+        if (ThreadCalibration.isCalibrated(context, InnerAnalysis.getModelFilename(context)) &&
+                ThreadCalibration.isCalibrated(context, OuterAnalysis.getModelFilename(context))) {
+            return;
+        }
+        Log.i(TAG, "Calibrating models that haven't been calibrated on this device");
+        calibrateModels(context);
     }
 
     public static void cancelProcess(String videoPath) {
-        Future<?> future = analysisFutures.remove(videoPath);
+        Job job = analysisJobs.remove(videoPath);
 
-        if (future != null) {
+        if (job != null) {
             Log.i(TAG, String.format("Cancelling processing of %s", videoPath));
-            future.cancel(false);
+            // Stops decoding and analysis of a video that has already started, or is still being submitted
+            job.token.cancel();
+
+            Future<?> future = job.future;
+            if (future != null) {
+                future.cancel(true);
+            }
         } else {
             Log.e(TAG, String.format("Cannot cancel processing of %s", videoPath));
         }
@@ -0,0 +1,140 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recycles per-frame bitmaps across frames and videos, keyed by dimensions and config.
+ * Once the pool has warmed up, the frame loop no longer allocates bitmaps.
+ * Pooled bitmaps are limited to a share of the app's memory, bitmaps of the least recently used sizes are recycled
+ * first, e.g. those of a resolution that is no longer being analysed. The pool is emptied once no videos are being
+ * analysed, and when the system asks the app to trim its memory.
+ */
+class BitmapPool implements ComponentCallbacks2 {
+    // Enough to cover a full frame queue, see FrameExecutor
+    private static final int MAX_PER_KEY = 64;
+    // Fraction of the app's maximum memory that pooled bitmaps are allowed to occupy
+    private static final int MEMORY_DIVISOR = 4;
+
+    private static final BitmapPool instance = new BitmapPool();
+
+    // In access order, so that the least recently used size comes first
+    private final LinkedHashMap<Long, ArrayDeque<Bitmap>> pool = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxBytes = Runtime.getRuntime().maxMemory() / MEMORY_DIVISOR;
+    private long pooledBytes = 0;
+
+    static BitmapPool getInstance() {
+        return instance;
+    }
+
+    private static long getKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+
+    /**
+     * @return a mutable bitmap with the given dimensions, its contents are undefined
+     */
+    Bitmap acquire(int width, int height, Bitmap.Config config) {
+        synchronized (pool) {
+            ArrayDeque<Bitmap> bitmaps = pool.get(getKey(width, height, config));
+
+            if (bitmaps != null && !bitmaps.isEmpty()) {
+                Bitmap bitmap = bitmaps.pop();
+                pooledBytes -= bitmap.getAllocationByteCount();
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Returns a bitmap to the pool, it must not be used by the caller afterwards
+     */
+    void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() ||
+                bitmap.getConfig() == null || bitmap.getConfig() == Bitmap.Config.HARDWARE) {
+            return;
+        }
+        long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        int bytes = bitmap.getAllocationByteCount();
+
+        synchronized (pool) {
+            ArrayDeque<Bitmap> bitmaps = pool.get(key);
+
+            if (bitmaps == null) {
+                bitmaps = new ArrayDeque<>();
+                pool.put(key, bitmaps);
+            }
+
+            if (bitmaps.size() < MAX_PER_KEY && evict(maxBytes - bytes, key)) {
+                bitmaps.push(bitmap);
+                pooledBytes += bytes;
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * Recycles bitmaps of the least recently used sizes until the pool occupies at most the given number of bytes
+     *
+     * @param keep key whose bitmaps are kept, i.e. the size being released
+     * @return false if the pool still occupies more bytes
+     */
+    private boolean evict(long targetBytes, long keep) {
+        Iterator<Map.Entry<Long, ArrayDeque<Bitmap>>> entries = pool.entrySet().iterator();
+
+        while (pooledBytes > targetBytes && entries.hasNext()) {
+            Map.Entry<Long, ArrayDeque<Bitmap>> entry = entries.next();
+            if (entry.getKey() == keep) {
+                continue;
+            }
+
+            for (Bitmap bitmap : entry.getValue()) {
+                pooledBytes -= bitmap.getAllocationByteCount();
+                bitmap.recycle();
+            }
+            entries.remove();
+        }
+        return pooledBytes <= targetBytes;
+    }
+
+    /**
+     * Recycles every pooled bitmap, bitmaps that are in use are pooled again once released
+     */
+    void clear() {
+        synchronized (pool) {
+            for (ArrayDeque<Bitmap> bitmaps : pool.values()) {
+                for (Bitmap bitmap : bitmaps) {
+                    bitmap.recycle();
+                }
+            }
+            pool.clear();
+            pooledBytes = 0;
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            clear();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+/**
+ * Cooperative stop signal for the analysis of a single video.
+ * Checked by the decoding loop before each frame and by frame analysis before preprocessing and inference,
+ * so that analysis stops within one frame of being cancelled or reaching its deadline.
+ */
+public class CancellationToken {
+    private volatile boolean cancelled = false;
+    private volatile boolean hasDeadline = false;
+    private volatile long deadlineNanos = 0;
+
+    /**
+     * Stops analysis, no results will be written
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Stops analysis once the timeout has elapsed, results completed before then are still written
+     */
+    void setDeadline(long timeoutMillis) {
+        deadlineNanos = System.nanoTime() + timeoutMillis * 1000000L;
+        hasDeadline = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    boolean isExpired() {
+        return hasDeadline && System.nanoTime() - deadlineNanos > 0;
+    }
+
+    boolean shouldStop() {
+        return cancelled || isExpired();
+    }
+}
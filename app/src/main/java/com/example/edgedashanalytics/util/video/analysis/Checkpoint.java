@@ -0,0 +1,93 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import android.util.Log;
+
+import com.example.edgedashanalytics.util.file.FileManager;
+import com.example.edgedashanalytics.util.file.JsonManager;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Progress of an in-progress analysis, kept next to its results file.
+ * Every frame before nextIndex has been resolved and its result flushed to the results file, so an analysis that
+ * was killed can resume from nextIndex instead of starting over. Removed once analysis finishes.
+ */
+@SuppressWarnings({"FieldCanBeLocal"})
+class Checkpoint {
+    private static final String TAG = Checkpoint.class.getSimpleName();
+
+    final String video;
+    final int totalFrames;
+    final int nextIndex;
+
+    @JsonCreator
+    Checkpoint(@JsonProperty("video") String video,
+               @JsonProperty("totalFrames") int totalFrames,
+               @JsonProperty("nextIndex") int nextIndex) {
+        this.video = video;
+        this.totalFrames = totalFrames;
+        this.nextIndex = nextIndex;
+    }
+
+    boolean matches(String videoName, int frameCount) {
+        return video != null && video.equals(videoName) && totalFrames == frameCount;
+    }
+
+    /**
+     * @return checkpoint of the results file, or null if there is no readable checkpoint
+     */
+    static Checkpoint read(String resultPath) {
+        File file = new File(FileManager.getCheckpointPath(resultPath));
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            String json = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+            return (Checkpoint) JsonManager.readFromString(json, Checkpoint.class);
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Could not read checkpoint of %s:\n  %s", resultPath, e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the previous checkpoint atomically, so that a crash while writing never leaves a corrupt checkpoint
+     */
+    void write(String resultPath) {
+        File file = new File(FileManager.getCheckpointPath(resultPath));
+        File temp = new File(FileManager.getCheckpointTempPath(resultPath));
+        String json = JsonManager.writeToString(this);
+
+        if (json == null) {
+            // Keeps the previous checkpoint, resuming from it only repeats some frames
+            Log.w(TAG, String.format("Could not serialise checkpoint of %s", resultPath));
+            return;
+        }
+
+        try {
+            FileUtils.writeStringToFile(temp, json, StandardCharsets.UTF_8);
+
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, String.format("Could not replace checkpoint of %s", resultPath));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Could not write checkpoint of %s:\n  %s", resultPath, e.getMessage()));
+        }
+    }
+
+    static void delete(String resultPath) {
+        File file = new File(FileManager.getCheckpointPath(resultPath));
+
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, String.format("Could not delete checkpoint of %s", resultPath));
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.example.edgedashanalytics.util.file.FileManager;
+import com.example.edgedashanalytics.util.file.JsonManager;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of a results file, read through a memory mapping.
+ * Stores each field in its own fixed-width column instead of repeating field names for every key point and hazard:
+ * per frame the frame index, the offset of its first item, the full score of inner frames and flags; per item, i.e.
+ * key point or hazard, the score, the coordinates or bounding box, and the body part or an index into a table of
+ * hazard categories.
+ * Columns follow a fixed size header, widest values first so that every column is aligned to its width.
+ * Inner results have no category, danger or box columns, and outer results have no full score, distracted flag,
+ * body part or coordinate columns, so their accessors are only valid for the matching kind of results.
+ * Results are still analysed, merged and shown as JSON, this format is only converted to and from it.
+ */
+public class ColumnarResults {
+    private static final String TAG = ColumnarResults.class.getSimpleName();
+
+    private static final int MAGIC = 0x45444352; // "EDCR"
+    private static final short VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+    private static final byte INNER = 0;
+    private static final byte OUTER = 1;
+
+    private static final byte CARRIED = 1;
+    private static final byte TRACKED = 1 << 1;
+    private static final byte DISTRACTED = 1 << 2;
+
+    private final ByteBuffer buffer;
+    private final Layout layout;
+    private final String[] categories;
+
+    /**
+     * Byte offsets of each column, derived from the header
+     */
+    private static class Layout {
+        final boolean inner;
+        final int frameCount;
+        final int itemCount;
+
+        final int frame;
+        final int itemStart;
+        final int fullScore;
+        final int itemScore;
+        final int x;
+        final int y;
+        final int box;
+        final int category;
+        final int flags;
+        final int bodyPart;
+        final int danger;
+        final int strings;
+
+        Layout(boolean inner, int frameCount, int itemCount) {
+            this.inner = inner;
+            this.frameCount = frameCount;
+            this.itemCount = itemCount;
+
+            // 4 byte columns
+            frame = HEADER_BYTES;
+            itemStart = frame + Integer.BYTES * frameCount;
+            fullScore = itemStart + Integer.BYTES * (frameCount + 1);
+            itemScore = fullScore + (inner ? Float.BYTES * frameCount : 0);
+            x = itemScore + Float.BYTES * itemCount;
+            y = x + (inner ? Float.BYTES * itemCount : 0);
+            box = y + (inner ? Float.BYTES * itemCount : 0);
+            // 2 byte columns
+            category = box + (inner ? 0 : 4 * Integer.BYTES * itemCount);
+            // 1 byte columns
+            flags = category + (inner ? 0 : Short.BYTES * itemCount);
+            bodyPart = flags + frameCount;
+            danger = bodyPart + (inner ? itemCount : 0);
+            strings = danger + (inner ? 0 : itemCount);
+        }
+    }
+
+    private ColumnarResults(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a columnar results file");
+        }
+        if (buffer.getShort(4) != VERSION) {
+            throw new IOException(String.format("Unsupported columnar results version %s", buffer.getShort(4)));
+        }
+        this.layout = new Layout(buffer.get(6) == INNER, buffer.getInt(8), buffer.getInt(12));
+        int stringCount = buffer.getInt(16);
+
+        if (buffer.getInt(20) != layout.strings || layout.strings > buffer.capacity()) {
+            throw new IOException("Columnar results file is truncated");
+        }
+
+        this.categories = new String[stringCount];
+        int position = layout.strings;
+        for (int i = 0; i < stringCount; i++) {
+            int length = buffer.getShort(position) & 0xFFFF;
+            byte[] bytes = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + Short.BYTES);
+            view.get(bytes);
+            categories[i] = new String(bytes, StandardCharsets.UTF_8);
+            position += Short.BYTES + length;
+        }
+    }
+
+    /**
+     * Maps a columnar results file into memory, columns are only read when accessed
+     */
+    public static ColumnarResults open(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return new ColumnarResults(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Encodes a JSON results file
+     *
+     * @return false if the results couldn't be read or written, or are empty, e.g. a dummy result
+     */
+    public static boolean fromJson(String jsonPath, String columnarPath) {
+        if (new File(jsonPath).length() == 0) {
+            return false;
+        }
+        boolean inner = FileManager.isInner(jsonPath);
+
+        try {
+            // A corrupt results file fails the encoding instead of being encoded cut off
+            ByteBuffer encoded = encode(JsonManager.readFrames(jsonPath), inner);
+
+            try (FileChannel channel = FileChannel.open(new File(columnarPath).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (encoded.hasRemaining()) {
+                    channel.write(encoded);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Could not write columnar results of %s: %s\n  %s",
+                    FileManager.getFilenameFromPath(jsonPath), e.getClass().getSimpleName(), e.getMessage()));
+            return false;
+        }
+    }
+
+    /**
+     * Decodes a columnar results file into a JSON results file, as written by analysis
+     *
+     * @return false if the results couldn't be read or written
+     */
+    public static boolean toJson(String columnarPath, String jsonPath) {
+        try {
+            ColumnarResults results = open(columnarPath);
+
+            try (JsonGenerator generator = JsonManager.createGenerator(jsonPath)) {
+                generator.writeStartArray();
+                for (int i = 0; i < results.getFrameCount(); i++) {
+                    generator.writeObject(results.getFrame(i));
+                }
+                generator.writeEndArray();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Could not convert columnar results of %s: %s\n  %s",
+                    FileManager.getFilenameFromPath(columnarPath), e.getClass().getSimpleName(), e.getMessage()));
+            return false;
+        }
+    }
+
+    private static ByteBuffer encode(List<Frame> frames, boolean inner) {
+        int itemCount = 0;
+        List<String> strings = new ArrayList<>();
+        Map<String, Short> stringIndexes = new HashMap<>();
+        int stringBytes = 0;
+
+        for (Frame frame : frames) {
+            List<?> items = getItems(frame);
+            itemCount += items.size();
+
+            if (!inner) {
+                for (Object item : items) {
+                    String category = ((Hazard) item).category;
+                    if (!stringIndexes.containsKey(category)) {
+                        stringIndexes.put(category, (short) strings.size());
+                        strings.add(category);
+                        stringBytes += Short.BYTES + category.getBytes(StandardCharsets.UTF_8).length;
+                    }
+                }
+            }
+        }
+
+        Layout layout = new Layout(inner, frames.size(), itemCount);
+        ByteBuffer buffer = ByteBuffer.allocate(layout.strings + stringBytes).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.put(6, inner ? INNER : OUTER);
+        buffer.putInt(8, layout.frameCount);
+        buffer.putInt(12, layout.itemCount);
+        buffer.putInt(16, strings.size());
+        buffer.putInt(20, layout.strings);
+
+        int item = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            byte flags = (byte) ((frame.carried ? CARRIED : 0) | (frame.tracked ? TRACKED : 0));
+
+            buffer.putInt(layout.frame + Integer.BYTES * i, frame.frame);
+            buffer.putInt(layout.itemStart + Integer.BYTES * i, item);
+
+            if (inner) {
+                InnerFrame innerFrame = (InnerFrame) frame;
+                buffer.putFloat(layout.fullScore + Float.BYTES * i, innerFrame.fullScore);
+                flags |= innerFrame.distracted ? DISTRACTED : 0;
+
+                for (KeyPoint keyPoint : getKeyPoints(innerFrame)) {
+                    buffer.putFloat(layout.itemScore + Float.BYTES * item, keyPoint.score);
+                    buffer.putFloat(layout.x + Float.BYTES * item, keyPoint.coordinate.x);
+                    buffer.putFloat(layout.y + Float.BYTES * item, keyPoint.coordinate.y);
+                    buffer.put(layout.bodyPart + item, (byte) keyPoint.bodyPart.ordinal());
+                    item++;
+                }
+            } else {
+                for (Hazard hazard : getHazards((OuterFrame) frame)) {
+                    int box = layout.box + 4 * Integer.BYTES * item;
+                    buffer.putFloat(layout.itemScore + Float.BYTES * item, hazard.score);
+                    buffer.putInt(box, hazard.bBox.left);
+                    buffer.putInt(box + Integer.BYTES, hazard.bBox.top);
+                    buffer.putInt(box + 2 * Integer.BYTES, hazard.bBox.right);
+                    buffer.putInt(box + 3 * Integer.BYTES, hazard.bBox.bottom);
+                    //noinspection ConstantConditions
+                    buffer.putShort(layout.category + Short.BYTES * item, stringIndexes.get(hazard.category));
+                    buffer.put(layout.danger + item, (byte) (hazard.danger ? 1 : 0));
+                    item++;
+                }
+            }
+            buffer.put(layout.flags + i, flags);
+        }
+        buffer.putInt(layout.itemStart + Integer.BYTES * frames.size(), item);
+
+        buffer.position(layout.strings);
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+
+        buffer.rewind();
+        return buffer;
+    }
+
+    private static List<?> getItems(Frame frame) {
+        return frame instanceof InnerFrame ? getKeyPoints((InnerFrame) frame) : getHazards((OuterFrame) frame);
+    }
+
+    private static List<KeyPoint> getKeyPoints(InnerFrame frame) {
+        return frame.keyPoints != null ? frame.keyPoints : Collections.emptyList();
+    }
+
+    private static List<Hazard> getHazards(OuterFrame frame) {
+        return frame.hazards != null ? frame.hazards : Collections.emptyList();
+    }
+
+    public boolean isInner() {
+        return layout.inner;
+    }
+
+    public int getFrameCount() {
+        return layout.frameCount;
+    }
+
+    /**
+     * @param i position of the frame in the results, not its frame index
+     */
+    public int getFrameIndex(int i) {
+        return buffer.getInt(layout.frame + Integer.BYTES * i);
+    }
+
+    /**
+     * @return number of key points or hazards in the frame
+     */
+    public int getItemCount(int i) {
+        return getItemStart(i + 1) - getItemStart(i);
+    }
+
+    private int getItemStart(int i) {
+        return buffer.getInt(layout.itemStart + Integer.BYTES * i);
+    }
+
+    /**
+     * @return score of a key point or hazard, items of all frames are numbered consecutively
+     */
+    public float getItemScore(int item) {
+        return buffer.getFloat(layout.itemScore + Float.BYTES * item);
+    }
+
+    /**
+     * @return index of the frame's first key point or hazard
+     */
+    int getFirstItem(int i) {
+        return getItemStart(i);
+    }
+
+    boolean isCarried(int i) {
+        return (buffer.get(layout.flags + i) & CARRIED) != 0;
+    }
+
+    boolean isTracked(int i) {
+        return (buffer.get(layout.flags + i) & TRACKED) != 0;
+    }
+
+    boolean isDistracted(int i) {
+        return (buffer.get(layout.flags + i) & DISTRACTED) != 0;
+    }
+
+    float getFullScore(int i) {
+        return buffer.getFloat(layout.fullScore + Float.BYTES * i);
+    }
+
+    BodyPart getBodyPart(int item) {
+        return BodyPart.AS_ARRAY[buffer.get(layout.bodyPart + item)];
+    }
+
+    float getX(int item) {
+        return buffer.getFloat(layout.x + Float.BYTES * item);
+    }
+
+    float getY(int item) {
+        return buffer.getFloat(layout.y + Float.BYTES * item);
+    }
+
+    String getCategory(int item) {
+        return categories[buffer.getShort(layout.category + Short.BYTES * item)];
+    }
+
+    boolean isDanger(int item) {
+        return buffer.get(layout.danger + item) != 0;
+    }
+
+    /**
+     * @param edge 0 to 3 for the left, top, right and bottom edges of the hazard's bounding box
+     */
+    int getBoxEdge(int item, int edge) {
+        return buffer.getInt(layout.box + Integer.BYTES * (4 * item + edge));
+    }
+
+    /**
+     * Decodes a single frame, reading only its own entries of each column
+     */
+    public Frame getFrame(int i) {
+        int start = getItemStart(i);
+        int end = getItemStart(i + 1);
+        Frame frame;
+
+        if (layout.inner) {
+            List<KeyPoint> keyPoints = new ArrayList<>(end - start);
+            for (int item = start; item < end; item++) {
+                keyPoints.add(new KeyPoint(getBodyPart(item), new PointF(getX(item), getY(item)),
+                        getItemScore(item)));
+            }
+            frame = new InnerFrame(getFrameIndex(i), isDistracted(i), getFullScore(i), keyPoints);
+        } else {
+            List<Hazard> hazards = new ArrayList<>(end - start);
+            for (int item = start; item < end; item++) {
+                Rect bBox = new Rect(getBoxEdge(item, 0), getBoxEdge(item, 1), getBoxEdge(item, 2),
+                        getBoxEdge(item, 3));
+                hazards.add(new Hazard(getCategory(item), getItemScore(item), isDanger(item), bBox));
+            }
+            frame = new OuterFrame(getFrameIndex(i), hazards);
+        }
+
+        frame.carried = isCarried(i);
+        frame.tracked = isTracked(i);
+        return frame;
+    }
+}
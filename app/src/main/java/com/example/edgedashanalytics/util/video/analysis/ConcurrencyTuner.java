@@ -0,0 +1,98 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses how many videos to analyse at once from the measured throughput of the device, in frames analysed per
+ * second over all videos.
+ * Starts at one video and tries one more whenever the next level is unmeasured or was faster, falling back a level
+ * when the previous level was faster. Throughput is only measured while the queue keeps every slot busy.
+ */
+class ConcurrencyTuner {
+    private static final String TAG = ConcurrencyTuner.class.getSimpleName();
+
+    // Shorter windows mostly measure the start and end of single videos
+    private static final long MIN_WINDOW_MS = 10000;
+    // Weight of the latest window in the throughput of its level
+    private static final double WINDOW_WEIGHT = 0.5;
+
+    private final int maxLevel;
+    // Frames per second at each level, index 0 is unused, 0 if unmeasured
+    private final double[] throughput;
+    private int level = 1;
+
+    private long windowStartNanos;
+    private long windowStartFrames;
+
+    /**
+     * @param maxLevel maximum number of videos analysed at once
+     */
+    ConcurrencyTuner(int maxLevel, long frames) {
+        this.maxLevel = Math.max(1, maxLevel);
+        this.throughput = new double[this.maxLevel + 1];
+        resetWindow(frames);
+    }
+
+    synchronized int getLevel() {
+        return level;
+    }
+
+    /**
+     * Starts a new measurement window, e.g. when the queue has run dry and throughput no longer reflects the level
+     *
+     * @param frames total frames analysed so far
+     */
+    synchronized void resetWindow(long frames) {
+        resetWindow(frames, System.nanoTime());
+    }
+
+    /**
+     * @param nowNanos current value of System.nanoTime()
+     */
+    synchronized void resetWindow(long frames, long nowNanos) {
+        windowStartNanos = nowNanos;
+        windowStartFrames = frames;
+    }
+
+    /**
+     * Called when a job completes while every slot is busy
+     *
+     * @param frames total frames analysed so far
+     * @return number of videos to analyse at once from now on
+     */
+    synchronized int update(long frames) {
+        return update(frames, System.nanoTime());
+    }
+
+    /**
+     * @param nowNanos current value of System.nanoTime()
+     */
+    synchronized int update(long frames, long nowNanos) {
+        long elapsedNanos = nowNanos - windowStartNanos;
+
+        if (TimeUnit.NANOSECONDS.toMillis(elapsedNanos) < MIN_WINDOW_MS) {
+            return level;
+        }
+
+        double measured = (frames - windowStartFrames) / (elapsedNanos / 1e9);
+        throughput[level] = throughput[level] == 0 ? measured :
+                WINDOW_WEIGHT * measured + (1 - WINDOW_WEIGHT) * throughput[level];
+        int previous = level;
+
+        if (level < maxLevel && (throughput[level + 1] == 0 || throughput[level + 1] > throughput[level])) {
+            level++;
+        } else if (level > 1 && throughput[level - 1] > throughput[level]) {
+            level--;
+        }
+
+        if (level != previous) {
+            Log.d(TAG, String.format(Locale.ENGLISH, "%d concurrent videos at %.2f fps, changing to %d",
+                    previous, throughput[previous], level));
+        }
+        resetWindow(frames, nowNanos);
+        return level;
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+/**
+ * Coarse-to-fine frame order, e.g. 0, N/2, N/4, 3N/4, N/8, 3N/8, ...
+ * Frames are split into passes, each pass halves the stride of the previous one and only contains the frames that
+ * earlier passes skipped. If analysis stops early, completed passes are evenly spread over the whole video.
+ * The first pass is kept large enough to cover the video on its own, later passes fill in the frames between.
+ */
+class CoverageOrder {
+    private static final int MIN_FIRST_PASS_FRAMES = 8;
+
+    private final int totalFrames;
+    private final int firstStride;
+    private final int passCount;
+
+    CoverageOrder(int totalFrames) {
+        this.totalFrames = totalFrames;
+
+        int stride = 1;
+        int passes = 1;
+        while ((totalFrames - 1) / (stride * 2) + 1 >= MIN_FIRST_PASS_FRAMES) {
+            stride *= 2;
+            passes++;
+        }
+        this.firstStride = stride;
+        this.passCount = passes;
+    }
+
+    int getPassCount() {
+        return passCount;
+    }
+
+    private int getStride(int pass) {
+        return firstStride >> pass;
+    }
+
+    int getFirstIndex(int pass) {
+        return pass == 0 ? 0 : getStride(pass);
+    }
+
+    /**
+     * @return distance between consecutive frames of a pass
+     */
+    int getStep(int pass) {
+        return pass == 0 ? firstStride : getStride(pass) * 2;
+    }
+
+    /**
+     * @return last frame of the pass, or -1 if the pass is empty
+     */
+    int getLastIndex(int pass) {
+        int first = getFirstIndex(pass);
+
+        if (first >= totalFrames) {
+            return -1;
+        }
+        int step = getStep(pass);
+        return first + ((totalFrames - 1 - first) / step) * step;
+    }
+
+    boolean contains(int pass, int frameIndex) {
+        int first = getFirstIndex(pass);
+        return frameIndex >= first && frameIndex < totalFrames && (frameIndex - first) % getStep(pass) == 0;
+    }
+}
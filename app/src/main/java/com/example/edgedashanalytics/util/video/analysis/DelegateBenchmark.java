@@ -0,0 +1,146 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import static com.example.edgedashanalytics.page.main.MainActivity.I_TAG;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.StringJoiner;
+
+/**
+ * Times a model under each candidate delegate on this device and stores the fastest delegate whose output stays
+ * within a tolerance of the plain CPU output, per model and device.
+ * The first candidate is the reference, so it should be the most accurate, i.e. {@link Delegate#CPU}.
+ */
+class DelegateBenchmark {
+    private static final String TAG = DelegateBenchmark.class.getSimpleName();
+    private static final String PREF_PREFIX = "delegate_";
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int TIMED_RUNS = 15;
+
+    enum Delegate {
+        CPU, // Built-in kernels, without XNNPACK
+        XNNPACK,
+        XNNPACK_FP16, // XNNPACK, allowing float16 precision for float32 models where supported
+        NNAPI
+    }
+
+    interface ModelFactory {
+        SampleModel create(Delegate delegate) throws Exception;
+    }
+
+    /**
+     * Results are only valid for the device and OS version they were measured on, e.g. NNAPI drivers change with OS
+     * updates, and preferences may be restored from a backup of another device
+     */
+    private static String getKey(String modelFilename) {
+        return String.format("%s%s_%s_%s", PREF_PREFIX, modelFilename, Build.MODEL, Build.VERSION.SDK_INT);
+    }
+
+    /**
+     * @return benchmarked delegate of the model, or defaultDelegate if the model hasn't been benchmarked
+     */
+    static Delegate get(Context context, String modelFilename, Delegate defaultDelegate) {
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
+        String value = pref.getString(getKey(modelFilename), null);
+
+        if (value != null) {
+            try {
+                return Delegate.valueOf(value);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, String.format("Invalid delegate of %s: %s", modelFilename, value));
+            }
+        }
+        return defaultDelegate;
+    }
+
+    /**
+     * @param tolerance maximum absolute difference of any output element from the reference output
+     * @return the fastest accurate delegate, or the current delegate if no delegate could be measured
+     */
+    static Delegate benchmark(Context context, String modelFilename, List<Delegate> candidates,
+                              Delegate defaultDelegate, float tolerance, ModelFactory factory) {
+        float[] reference = null;
+        Delegate best = null;
+        long bestNanos = Long.MAX_VALUE;
+
+        StringJoiner message = new StringJoiner("\n  ");
+        message.add(String.format("Delegate benchmark of %s on %s:", modelFilename, Build.MODEL));
+
+        for (Delegate delegate : candidates) {
+            float[] output;
+            long medianNanos;
+
+            try (SampleModel model = factory.create(delegate)) {
+                for (int i = 0; i < WARMUP_RUNS; i++) {
+                    model.run();
+                }
+
+                long[] times = new long[TIMED_RUNS];
+                for (int i = 0; i < TIMED_RUNS; i++) {
+                    long start = System.nanoTime();
+                    model.run();
+                    times[i] = System.nanoTime() - start;
+                }
+                Arrays.sort(times);
+                medianNanos = times[TIMED_RUNS / 2];
+                output = model.run().clone();
+            } catch (Exception e) {
+                message.add(String.format("%s: failed, %s", delegate, e.getClass().getSimpleName()));
+                continue;
+            }
+
+            if (reference == null) {
+                reference = output;
+            } else {
+                float error = getMaxError(reference, output);
+
+                if (error > tolerance) {
+                    message.add(String.format(Locale.ENGLISH, "%s: %.2fms, inaccurate, max error %.4f",
+                            delegate, medianNanos / 1e6, error));
+                    continue;
+                }
+            }
+            message.add(String.format(Locale.ENGLISH, "%s: %.2fms", delegate, medianNanos / 1e6));
+
+            if (medianNanos < bestNanos) {
+                best = delegate;
+                bestNanos = medianNanos;
+            }
+        }
+
+        if (best == null) {
+            Log.w(I_TAG, String.format("Delegate benchmark of %s failed", modelFilename));
+            return get(context, modelFilename, defaultDelegate);
+        }
+        message.add(String.format("Selected %s", best));
+        Log.i(I_TAG, message.toString());
+
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
+        pref.edit().putString(getKey(modelFilename), best.name()).apply();
+        return best;
+    }
+
+    /**
+     * @return maximum absolute element-wise difference, or infinity if the outputs differ in length
+     */
+    private static float getMaxError(float[] reference, float[] output) {
+        if (reference.length != output.length) {
+            return Float.POSITIVE_INFINITY;
+        }
+        float max = 0;
+
+        for (int i = 0; i < reference.length; i++) {
+            max = Math.max(max, Math.abs(reference[i] - output[i]));
+        }
+        return max;
+    }
+}
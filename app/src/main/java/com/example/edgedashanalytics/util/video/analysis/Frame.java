@@ -1,6 +1,30 @@
 package com.example.edgedashanalytics.util.video.analysis;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 @SuppressWarnings({"unused"})
 public abstract class Frame {
     public int frame;
+    // Result was reused from an earlier frame instead of running inference, see MotionGate
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public boolean carried = false;
+    // Result was predicted from earlier frames by tracking instead of running inference
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public boolean tracked = false;
+
+    /**
+     * @return copy of this frame's result for a later, unchanged frame
+     */
+    abstract Frame carry(int frameIndex);
+
+    /**
+     * @param previous analysed frame before this one, used to estimate motion, may be null
+     * @return result for a later frame, predicted by tracking this frame's result
+     */
+    abstract Frame predict(Frame previous, int frameIndex);
+
+    /**
+     * @return true if this frame's result can't be reliably tracked from the previous analysed frame
+     */
+    abstract boolean isLowConfidence(Frame previous);
 }
@@ -0,0 +1,365 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+// https://developer.android.com/reference/android/media/MediaCodec
+// https://bigflake.com/mediacodec/ExtractMpegFramesTest.java.txt
+/**
+ * Decodes a video in a single sequential pass, so each GOP is only decoded once.
+ * MediaMetadataRetriever.getFrameAtIndex seeks to the previous sync frame and decodes forward for every call.
+ * Frames are rotated to their display orientation during YUV conversion, like the retriever's frames.
+ * Frames that are far apart can be reached with {@link #seekTo(int)}, which only decodes from the closest sync frame.
+ */
+class FrameDecoder implements AutoCloseable {
+    private static final String TAG = FrameDecoder.class.getSimpleName();
+    private static final long TIMEOUT_US = 10000;
+
+    private final String videoPath;
+    private final MediaExtractor extractor;
+    private final MediaCodec codec;
+    private final BitmapPool bitmapPool;
+    private int trackIndex = -1;
+    // Clockwise rotation in degrees that the track should be displayed with, a multiple of 90
+    private final int rotation;
+
+    private byte[] yBytes;
+    private byte[] uBytes;
+    private byte[] vBytes;
+    private int[] argb;
+    private int frameIndex = 0;
+    private boolean inputDone = false;
+    private boolean outputDone = false;
+
+    // Presentation times of all frames in presentation order and indexes of sync frames, built on the first seek
+    private long[] frameTimes = null;
+    private int[] syncIndexes = null;
+
+    interface FrameCallback {
+        void onFrame(Bitmap bitmap, int frameIndex);
+    }
+
+    FrameDecoder(String videoPath, BitmapPool bitmapPool) throws IOException {
+        this.videoPath = videoPath;
+        this.bitmapPool = bitmapPool;
+        extractor = new MediaExtractor();
+        MediaFormat format;
+
+        try {
+            extractor.setDataSource(videoPath);
+            format = selectVideoTrack(extractor);
+
+            if (format == null) {
+                throw new IOException(String.format("No video track found in %s", videoPath));
+            }
+
+            rotation = getRotation(format);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        } catch (IOException | RuntimeException e) {
+            extractor.release();
+            throw e;
+        }
+
+        try {
+            codec.configure(format, null, null, 0);
+            codec.start();
+        } catch (RuntimeException e) {
+            codec.release();
+            extractor.release();
+            throw e;
+        }
+    }
+
+    private MediaFormat selectVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+
+            if (mime != null && mime.startsWith("video/")) {
+                extractor.selectTrack(i);
+                trackIndex = i;
+                return format;
+            }
+        }
+        return null;
+    }
+
+    private static int getRotation(MediaFormat format) {
+        if (!format.containsKey(MediaFormat.KEY_ROTATION)) {
+            return 0;
+        }
+        int degrees = ((format.getInteger(MediaFormat.KEY_ROTATION) % 360) + 360) % 360;
+
+        if (degrees % 90 != 0) {
+            Log.w(TAG, String.format("Ignoring unsupported rotation of %s degrees", degrees));
+            return 0;
+        }
+        return degrees;
+    }
+
+    /**
+     * Decodes frames in presentation order, only converting and passing on frames accepted by the filter.
+     * Frame bitmaps are taken from the bitmap pool, the callback is responsible for releasing them.
+     * Stops once lastIndex has been decoded, call {@link #rewind()} or {@link #seekTo(int)} to go back.
+     * Returns early once the token signals that analysis should stop.
+     */
+    void decode(FrameCallback callback, IntPredicate filter, int lastIndex, CancellationToken token) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        while (!outputDone && frameIndex <= lastIndex && !token.shouldStop()) {
+            if (!inputDone) {
+                int inIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+
+                if (inIndex >= 0) {
+                    ByteBuffer inBuffer = codec.getInputBuffer(inIndex);
+                    int sampleSize = inBuffer == null ? -1 : extractor.readSampleData(inBuffer, 0);
+
+                    if (sampleSize < 0) {
+                        codec.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        codec.queueInputBuffer(inIndex, 0, sampleSize, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+
+            int outIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (outIndex < 0) {
+                // Either no output is available yet, or the output format/buffers changed
+                continue;
+            }
+
+            outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            int index = info.size > 0 ? getIndex(info.presentationTimeUs) : -1;
+
+            // Skipped frames still have to be decoded, but YUV conversion is by far the most expensive part
+            if (index >= 0 && filter.test(index)) {
+                Bitmap bitmap = null;
+                Image image = codec.getOutputImage(outIndex);
+
+                if (image != null) {
+                    bitmap = toBitmap(image);
+                    image.close();
+                }
+                // Release the codec's buffer before handing over the frame, the callback may block
+                codec.releaseOutputBuffer(outIndex, false);
+                // A null bitmap is still passed on, so that the callback knows the frame is missing
+                callback.onFrame(bitmap, index);
+            } else {
+                codec.releaseOutputBuffer(outIndex, false);
+            }
+
+            if (index >= 0) {
+                frameIndex = index + 1;
+            }
+        }
+    }
+
+    /**
+     * @return index of the frame, counted from the start of the video or looked up once seeking has built the index,
+     * -1 if the frame isn't in the index
+     */
+    private int getIndex(long presentationTimeUs) {
+        if (frameTimes == null) {
+            return frameIndex;
+        }
+        int index = Arrays.binarySearch(frameTimes, presentationTimeUs);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Seeks back to the start of the video, so that it can be decoded again
+     */
+    void rewind() {
+        codec.flush();
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        frameIndex = 0;
+        inputDone = false;
+        outputDone = false;
+    }
+
+    /**
+     * Positions the decoder so that decoding reaches the frame from the closest sync frame before it.
+     * Keeps decoding from the current position if no sync frame lies between it and the frame, as seeking would
+     * decode the same frames.
+     */
+    void seekTo(int index) throws IOException {
+        if (frameTimes == null) {
+            buildIndex();
+        }
+        int sync = 0;
+        for (int syncIndex : syncIndexes) {
+            if (syncIndex > index) {
+                break;
+            }
+            sync = syncIndex;
+        }
+
+        if (index >= frameIndex && sync <= frameIndex) {
+            return;
+        }
+        codec.flush();
+        extractor.seekTo(sync < frameTimes.length ? frameTimes[sync] : 0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        frameIndex = sync;
+        inputDone = false;
+        outputDone = false;
+    }
+
+    /**
+     * Reads the presentation time and flags of every sample with a separate extractor, without decoding
+     */
+    private void buildIndex() throws IOException {
+        MediaExtractor scanner = new MediaExtractor();
+        long[] times = new long[256];
+        long[] syncTimes = new long[16];
+        int count = 0;
+        int syncCount = 0;
+
+        try {
+            scanner.setDataSource(videoPath);
+            scanner.selectTrack(trackIndex);
+
+            for (long time = scanner.getSampleTime(); time >= 0; time = scanner.getSampleTime()) {
+                if (count == times.length) {
+                    times = Arrays.copyOf(times, count * 2);
+                }
+                times[count++] = time;
+
+                if ((scanner.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                    if (syncCount == syncTimes.length) {
+                        syncTimes = Arrays.copyOf(syncTimes, syncCount * 2);
+                    }
+                    syncTimes[syncCount++] = time;
+                }
+                scanner.advance();
+            }
+        } finally {
+            scanner.release();
+        }
+
+        // Samples are stored in decoding order, frames are output in presentation order
+        frameTimes = Arrays.copyOf(times, count);
+        Arrays.sort(frameTimes);
+        syncIndexes = new int[syncCount];
+        for (int i = 0; i < syncCount; i++) {
+            syncIndexes[i] = Arrays.binarySearch(frameTimes, syncTimes[i]);
+        }
+        Arrays.sort(syncIndexes);
+    }
+
+    /**
+     * @return number of frames that have been decoded since the start of the video, including skipped frames
+     */
+    int getDecodedCount() {
+        return frameIndex;
+    }
+
+    // https://en.wikipedia.org/wiki/YUV#Y%E2%80%B2UV420sp_(NV21)_to_RGB_conversion_(Android)
+    private Bitmap toBitmap(Image image) {
+        Rect crop = image.getCropRect();
+        int width = crop.width();
+        int height = crop.height();
+
+        Image.Plane[] planes = image.getPlanes();
+        yBytes = copyPlane(planes[0].getBuffer(), yBytes);
+        uBytes = copyPlane(planes[1].getBuffer(), uBytes);
+        vBytes = copyPlane(planes[2].getBuffer(), vBytes);
+
+        int yRowStride = planes[0].getRowStride();
+        int yPixelStride = planes[0].getPixelStride();
+        int uvRowStride = planes[1].getRowStride();
+        int uvPixelStride = planes[1].getPixelStride();
+
+        if (argb == null || argb.length < width * height) {
+            argb = new int[width * height];
+        }
+        boolean swapped = rotation == 90 || rotation == 270;
+        int outWidth = swapped ? height : width;
+        int outHeight = swapped ? width : height;
+
+        for (int row = 0; row < height; row++) {
+            int yRow = (row + crop.top) * yRowStride;
+            int uvRow = ((row + crop.top) >> 1) * uvRowStride;
+            // Output index of the row's first pixel and the distance between consecutive pixels of the row
+            int out;
+            int step;
+
+            switch (rotation) {
+                case 90:
+                    out = height - 1 - row;
+                    step = outWidth;
+                    break;
+                case 180:
+                    out = (height - 1 - row) * width + width - 1;
+                    step = -1;
+                    break;
+                case 270:
+                    out = (width - 1) * outWidth + row;
+                    step = -outWidth;
+                    break;
+                default:
+                    out = row * width;
+                    step = 1;
+                    break;
+            }
+
+            for (int col = 0; col < width; col++) {
+                int y = (yBytes[yRow + (col + crop.left) * yPixelStride] & 0xff) - 16;
+                int uvIndex = uvRow + ((col + crop.left) >> 1) * uvPixelStride;
+                int u = (uBytes[uvIndex] & 0xff) - 128;
+                int v = (vBytes[uvIndex] & 0xff) - 128;
+
+                int y1192 = 1192 * Math.max(y, 0);
+                int r = clamp(y1192 + 1634 * v);
+                int g = clamp(y1192 - 833 * v - 400 * u);
+                int b = clamp(y1192 + 2066 * u);
+
+                argb[out + col * step] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+            }
+        }
+
+        Bitmap bitmap = bitmapPool.acquire(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(argb, 0, outWidth, 0, 0, outWidth, outHeight);
+        return bitmap;
+    }
+
+    private static byte[] copyPlane(ByteBuffer buffer, byte[] bytes) {
+        buffer.rewind();
+        int size = buffer.remaining();
+
+        if (bytes == null || bytes.length < size) {
+            bytes = new byte[size];
+        }
+        buffer.get(bytes, 0, size);
+        return bytes;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : Math.min(value, 262143);
+    }
+
+    @Override
+    public void close() {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, String.format("Failed to stop decoder:\n  %s", e.getMessage()));
+        }
+        codec.release();
+        extractor.release();
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size thread pool with a bounded work queue, used to hand decoded frames over to analysis.
+ * Stops the decoding loop from running far ahead of analysis and holding too many frames in memory.
+ */
+class FrameExecutor {
+    // About one second of footage
+    private static final int MAX_CAPACITY = 30;
+    // Fraction of available RAM that queued frames are allowed to occupy
+    private static final int RAM_DIVISOR = 4;
+
+    enum Policy {
+        BLOCK, // Wait for space in the queue, every frame is analysed
+        DROP // Discard frames that arrive while the queue is full
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final BlockingQueue<Runnable> queue;
+    private final Policy policy;
+    private final int capacity;
+
+    private final AtomicInteger maxDepth = new AtomicInteger(0);
+    private final AtomicInteger droppedCount = new AtomicInteger(0);
+    private final AtomicLong stallNanos = new AtomicLong(0);
+
+    FrameExecutor(int threadNum, int capacity, Policy policy) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.executor = new ThreadPoolExecutor(threadNum, threadNum, 0L, TimeUnit.MILLISECONDS, queue);
+        this.executor.prestartAllCoreThreads();
+        this.policy = policy;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param availRam   available memory in bytes, see {@link com.example.edgedashanalytics.util.hardware.HardwareInfo}
+     * @param frameBytes size of a single queued frame in bytes
+     * @return number of frames that can be queued without exceeding the memory budget
+     */
+    static int getCapacity(long availRam, long frameBytes, int threadNum) {
+        long budget = (availRam / RAM_DIVISOR) / Math.max(frameBytes, 1);
+        return (int) Math.max(threadNum, Math.min(budget, MAX_CAPACITY));
+    }
+
+    /**
+     * Queues a frame for analysis, blocking or dropping the frame if the queue is full, depending on the policy
+     *
+     * @return true if the frame was queued
+     */
+    boolean execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (executor.isShutdown() || policy == Policy.DROP) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+
+            long start = System.nanoTime();
+            try {
+                queue.put(task);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                droppedCount.incrementAndGet();
+                return false;
+            } finally {
+                stallNanos.addAndGet(System.nanoTime() - start);
+            }
+
+            // Shut down while waiting, its workers may have exited without taking the frame. If it isn't in the
+            // queue, a worker took it or shutdownNow discarded and counted it.
+            if (executor.isShutdown() && queue.remove(task)) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+        }
+
+        maxDepth.accumulateAndGet(queue.size(), Math::max);
+        return true;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Stops running frames and discards queued frames
+     *
+     * @return number of queued frames that were discarded
+     */
+    int shutdownNow() {
+        int dropped = executor.shutdownNow().size();
+        droppedCount.addAndGet(dropped);
+        return dropped;
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    int getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    long getStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stallNanos.get());
+    }
+
+    String getSummary() {
+        return String.format(Locale.ENGLISH, "capacity: %d, policy: %s, max depth: %d, stalled: %dms, dropped: %d",
+                capacity, policy.name(), getMaxDepth(), getStallMillis(), getDroppedCount());
+    }
+}
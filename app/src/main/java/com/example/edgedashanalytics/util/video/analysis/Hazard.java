@@ -8,10 +8,10 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 class Hazard {
-    private final String category;
-    private final float score;
-    private final boolean danger;
-    private final Rect bBox;
+    final String category;
+    final float score;
+    final boolean danger;
+    final Rect bBox;
 
     @JsonCreator
     Hazard(@JsonProperty("category") String category,
@@ -0,0 +1,137 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Propagates hazards between sparse detector runs.
+ * Hazards of the two most recent detections are associated by IoU, falling back to centroid distance for small or
+ * fast moving objects, and matched hazards are moved along at constant velocity.
+ */
+final class HazardTracker {
+    private static final float MIN_IOU = 0.3f;
+    // Maximum centroid distance for an association, as a fraction of the larger box dimension
+    private static final float MAX_CENTROID_DIST = 0.5f;
+    // Re-detect when fewer than this fraction of hazards could be associated with the previous detection
+    private static final float MIN_MATCHED_FRACTION = 0.5f;
+
+    private HazardTracker() {
+    }
+
+    /**
+     * @return for each hazard in current, the index of its match in previous, or -1 if it is a new hazard
+     */
+    static int[] associate(List<Hazard> previous, List<Hazard> current) {
+        int[] matches = new int[current.size()];
+        Arrays.fill(matches, -1);
+        boolean[] used = new boolean[previous.size()];
+
+        for (int c = 0; c < current.size(); c++) {
+            Hazard hazard = current.get(c);
+            int best = -1;
+            float bestCost = Float.MAX_VALUE;
+
+            for (int p = 0; p < previous.size(); p++) {
+                Hazard candidate = previous.get(p);
+
+                if (used[p] || !candidate.category.equals(hazard.category)) {
+                    continue;
+                }
+
+                // Lower is better, IoU matches are always preferred to centroid matches
+                float iou = iou(candidate.bBox, hazard.bBox);
+                float cost;
+                if (iou >= MIN_IOU) {
+                    cost = 1 - iou;
+                } else {
+                    float dist = centroidDistance(candidate.bBox, hazard.bBox);
+                    float maxDist = MAX_CENTROID_DIST * Math.max(
+                            Math.max(hazard.bBox.width(), hazard.bBox.height()), 1);
+                    if (dist > maxDist) {
+                        continue;
+                    }
+                    cost = 1 + dist / maxDist;
+                }
+
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = p;
+                }
+            }
+
+            if (best >= 0) {
+                used[best] = true;
+                matches[c] = best;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @param previous hazards of the detection before latest, may be null
+     * @param gap      number of frames between the previous and latest detection
+     * @param offset   number of frames between the latest detection and the predicted frame
+     * @param width    width of the original frame, the danger of moved hazards is re-evaluated if the size is known
+     * @param height   height of the original frame, 0 if unknown
+     */
+    static List<Hazard> predict(List<Hazard> previous, List<Hazard> latest, int gap, int offset,
+                                int width, int height) {
+        List<Hazard> predicted = new ArrayList<>(latest.size());
+        int[] matches = previous == null ? null : associate(previous, latest);
+
+        for (int i = 0; i < latest.size(); i++) {
+            Hazard hazard = latest.get(i);
+            Rect box = new Rect(hazard.bBox);
+
+            if (matches != null && matches[i] >= 0 && gap > 0) {
+                Rect before = previous.get(matches[i]).bBox;
+                float ratio = offset / (float) gap;
+                box.offset(Math.round((box.centerX() - before.centerX()) * ratio),
+                        Math.round((box.centerY() - before.centerY()) * ratio));
+            }
+            // A hazard may have moved into or out of the danger or tailgate zone
+            boolean danger = width > 0 && height > 0 ?
+                    OuterAnalysis.isDanger(box, hazard.category, width, height) : hazard.danger;
+            predicted.add(new Hazard(hazard.category, hazard.score, danger, box));
+        }
+        return predicted;
+    }
+
+    /**
+     * @return true if the latest detection differs too much from the previous one to be tracked reliably
+     */
+    static boolean isLowConfidence(List<Hazard> previous, List<Hazard> latest) {
+        if (latest.isEmpty()) {
+            return !previous.isEmpty();
+        }
+        int matched = 0;
+
+        for (int match : associate(previous, latest)) {
+            if (match >= 0) {
+                matched++;
+            }
+        }
+        return matched < MIN_MATCHED_FRACTION * Math.max(previous.size(), latest.size());
+    }
+
+    private static float iou(Rect a, Rect b) {
+        int left = Math.max(a.left, b.left);
+        int top = Math.max(a.top, b.top);
+        int right = Math.min(a.right, b.right);
+        int bottom = Math.min(a.bottom, b.bottom);
+
+        if (right <= left || bottom <= top) {
+            return 0;
+        }
+        float intersection = (right - left) * (float) (bottom - top);
+        float union = a.width() * (float) a.height() + b.width() * (float) b.height() - intersection;
+        return union <= 0 ? 0 : intersection / union;
+    }
+
+    private static float centroidDistance(Rect a, Rect b) {
+        return (float) Math.hypot(a.exactCenterX() - b.exactCenterX(), a.exactCenterY() - b.exactCenterY());
+    }
+}
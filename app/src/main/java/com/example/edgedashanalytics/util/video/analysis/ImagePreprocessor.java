@@ -0,0 +1,124 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import android.graphics.Bitmap;
+
+import org.tensorflow.lite.DataType;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Crops, pads and resamples a bitmap in a single pass, writing RGB values straight into a direct input buffer.
+ * Replaces TensorImage.fromBitmap followed by an ImageProcessor, which creates an intermediate image for each op.
+ * Not thread-safe, each pooled interpreter or batching thread owns its own preprocessor.
+ */
+class ImagePreprocessor {
+    private static final int CHANNELS = 3;
+
+    private final boolean isFloat;
+    private ByteBuffer buffer;
+    private int[] pixels;
+
+    ImagePreprocessor(DataType dataType) {
+        this.isFloat = dataType == DataType.FLOAT32;
+    }
+
+    /**
+     * Crops a region of the bitmap and resizes it to outWidth x outHeight with bilinear filtering.
+     * Parts of the region that lie outside the bitmap are padded with black.
+     *
+     * @return the preprocessor's input buffer, rewound and ready to be passed to a model
+     */
+    ByteBuffer process(Bitmap bitmap, int cropLeft, int cropTop, int cropWidth, int cropHeight,
+                       int outWidth, int outHeight) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+
+        if (pixels == null || pixels.length < width * height) {
+            pixels = new int[width * height];
+        }
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        int capacity = outWidth * outHeight * CHANNELS * (isFloat ? Float.BYTES : 1);
+        if (buffer == null || buffer.capacity() != capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        buffer.rewind();
+
+        if (cropLeft == 0 && cropTop == 0 && cropWidth == width && cropHeight == height &&
+                outWidth == width && outHeight == height) {
+            // No cropping or resizing required, copy pixels directly
+            for (int i = 0; i < width * height; i++) {
+                putPixel(pixels[i]);
+            }
+            buffer.rewind();
+            return buffer;
+        }
+
+        float xScale = cropWidth / (float) outWidth;
+        float yScale = cropHeight / (float) outHeight;
+
+        for (int y = 0; y < outHeight; y++) {
+            // Sample at pixel centres, same as Bitmap.createScaledBitmap with filtering
+            float srcY = cropTop + (y + 0.5f) * yScale;
+
+            if (srcY < 0 || srcY >= height) {
+                for (int x = 0; x < outWidth; x++) {
+                    putPixel(0);
+                }
+                continue;
+            }
+
+            float fy = Math.max(srcY - 0.5f, 0);
+            int y0 = Math.min((int) fy, height - 1);
+            int y1 = Math.min(y0 + 1, height - 1);
+            float dy = fy - y0;
+
+            for (int x = 0; x < outWidth; x++) {
+                float srcX = cropLeft + (x + 0.5f) * xScale;
+
+                if (srcX < 0 || srcX >= width) {
+                    putPixel(0);
+                    continue;
+                }
+
+                float fx = Math.max(srcX - 0.5f, 0);
+                int x0 = Math.min((int) fx, width - 1);
+                int x1 = Math.min(x0 + 1, width - 1);
+                float dx = fx - x0;
+
+                int p00 = pixels[y0 * width + x0];
+                int p01 = pixels[y0 * width + x1];
+                int p10 = pixels[y1 * width + x0];
+                int p11 = pixels[y1 * width + x1];
+
+                putChannel(lerp(p00, p01, p10, p11, 16, dx, dy));
+                putChannel(lerp(p00, p01, p10, p11, 8, dx, dy));
+                putChannel(lerp(p00, p01, p10, p11, 0, dx, dy));
+            }
+        }
+
+        buffer.rewind();
+        return buffer;
+    }
+
+    private static float lerp(int p00, int p01, int p10, int p11, int shift, float dx, float dy) {
+        float top = ((p00 >> shift) & 0xff) * (1 - dx) + ((p01 >> shift) & 0xff) * dx;
+        float bottom = ((p10 >> shift) & 0xff) * (1 - dx) + ((p11 >> shift) & 0xff) * dx;
+        return top * (1 - dy) + bottom * dy;
+    }
+
+    private void putPixel(int pixel) {
+        putChannel((pixel >> 16) & 0xff);
+        putChannel((pixel >> 8) & 0xff);
+        putChannel(pixel & 0xff);
+    }
+
+    private void putChannel(float value) {
+        if (isFloat) {
+            buffer.putFloat(value);
+        } else {
+            buffer.put((byte) Math.min(Math.round(value), 255));
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import static com.example.edgedashanalytics.page.main.MainActivity.I_TAG;
+
+import android.util.Log;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Groups single-frame inference requests from concurrent analysis threads, of one or several videos, into a single
+ * batched interpreter call, which makes better use of XNNPACK's threads than several single-frame calls.
+ * The first thread to find no batch running becomes the leader: it waits a short window for other threads to add
+ * their inputs, runs the batch and hands each thread its output. Other threads wait, or lead the next batch.
+ * Threads preprocess into their own input buffer and receive their own output array, so they don't hold a pooled
+ * interpreter while waiting. The batch size should not exceed the number of threads that can call at once, as the
+ * leader would wait the whole window for every batch.
+ * Batching is disabled if the model can't be resized, callers then run their own interpreter.
+ */
+class InferenceBatcher implements AutoCloseable {
+    private static final long POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final Interpreter interpreter;
+    private final int maxBatch;
+    private final long windowNanos;
+    private final int[] inputShape;
+    private final int outputSize;
+
+    private final ReentrantLock leaderLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<>();
+    private volatile boolean enabled;
+    private final ThreadLocal<ImagePreprocessor> preprocessors;
+    private final ThreadLocal<float[]> outputs;
+
+    // Only accessed by the leader
+    private final ByteBuffer[] inputBuffers;
+    private final ByteBuffer[] outputBuffers;
+    private int batchSize = 1;
+    private long batchCount = 0;
+    private long requestCount = 0;
+
+    private static class Request {
+        final ByteBuffer input;
+        final float[] output;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean success = false;
+
+        Request(ByteBuffer input, float[] output) {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    /**
+     * @param interpreter dedicated interpreter for batched calls, with a batch dimension of 1 in its first input
+     */
+    InferenceBatcher(Interpreter interpreter, int maxBatch, long windowMillis) {
+        this.interpreter = interpreter;
+        this.maxBatch = maxBatch;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.inputShape = interpreter.getInputTensor(0).shape();
+        this.outputSize = interpreter.getOutputTensor(0).numElements();
+        this.inputBuffers = new ByteBuffer[maxBatch + 1];
+        this.outputBuffers = new ByteBuffer[maxBatch + 1];
+
+        DataType dataType = interpreter.getInputTensor(0).dataType();
+        int size = outputSize;
+        this.preprocessors = ThreadLocal.withInitial(() -> new ImagePreprocessor(dataType));
+        this.outputs = ThreadLocal.withInitial(() -> new float[size]);
+
+        // Many single-image models have a fixed batch dimension, check that resizing works before relying on it
+        this.enabled = maxBatch > 1 && resize(maxBatch);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return preprocessor of the calling thread, its input buffer can be passed to {@link #run}
+     */
+    ImagePreprocessor getPreprocessor() {
+        return preprocessors.get();
+    }
+
+    /**
+     * Runs inference on a single preprocessed input as part of a batch, blocks until the batch has run
+     *
+     * Not interruptible, the leader may still write into the output, waits are bounded by the duration of one batch.
+     *
+     * @return the model's output for this input, owned by the calling thread and overwritten by its next call, or
+     * null if batching failed, the caller should then run inference itself
+     */
+    float[] run(ByteBuffer input) {
+        if (!enabled) {
+            return null;
+        }
+        Request request = new Request(input, outputs.get());
+        pending.add(request);
+        boolean interrupted = false;
+
+        while (request.done.getCount() > 0) {
+            if (leaderLock.tryLock()) {
+                try {
+                    if (request.done.getCount() > 0) {
+                        runBatch();
+                    }
+                } finally {
+                    leaderLock.unlock();
+                }
+            } else {
+                try {
+                    request.done.await(windowNanos, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return request.success ? request.output : null;
+    }
+
+    private void runBatch() {
+        long deadline = System.nanoTime() + windowNanos;
+        while (pending.size() < maxBatch && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+
+        List<Request> batch = new ArrayList<>(maxBatch);
+        Request next;
+        while (batch.size() < maxBatch && (next = pending.poll()) != null) {
+            batch.add(next);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (!enabled || !resize(batch.size())) {
+                return;
+            }
+            ByteBuffer input = inputBuffers[batchSize];
+            ByteBuffer output = outputBuffers[batchSize];
+
+            input.rewind();
+            for (Request request : batch) {
+                request.input.rewind();
+                input.put(request.input);
+            }
+            input.rewind();
+            output.rewind();
+            interpreter.run(input, output);
+
+            FloatBuffer outputFloats = output.asFloatBuffer();
+            for (Request request : batch) {
+                outputFloats.get(request.output, 0, outputSize);
+                request.success = true;
+            }
+            batchCount++;
+            requestCount += batch.size();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.w(I_TAG, String.format("Batched inference failed, disabling batching:\n  %s", e.getMessage()));
+            enabled = false;
+        } finally {
+            for (Request request : batch) {
+                request.done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Resizes the interpreter's batch dimension, buffers for each batch size are kept so that they can be reused
+     */
+    private boolean resize(int size) {
+        if (size == batchSize && inputBuffers[size] != null) {
+            return true;
+        }
+        int[] shape = inputShape.clone();
+        shape[0] = size;
+
+        try {
+            interpreter.resizeInput(0, shape);
+            interpreter.allocateTensors();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.w(I_TAG, String.format("Model does not support a batch size of %s:\n  %s", size, e.getMessage()));
+            enabled = false;
+            return false;
+        }
+        batchSize = size;
+
+        if (inputBuffers[size] == null) {
+            inputBuffers[size] = ByteBuffer.allocateDirect(interpreter.getInputTensor(0).numBytes())
+                    .order(ByteOrder.nativeOrder());
+            outputBuffers[size] = ByteBuffer.allocateDirect(interpreter.getOutputTensor(0).numBytes())
+                    .order(ByteOrder.nativeOrder());
+        }
+        return true;
+    }
+
+    /**
+     * Closes the batch interpreter, only once no thread can call {@link #run} anymore
+     */
+    @Override
+    public void close() {
+        interpreter.close();
+    }
+
+    String getSummary() {
+        leaderLock.lock();
+        try {
+            return String.format("batches: %s, mean batch size: %.2f", batchCount,
+                    batchCount == 0 ? 0 : requestCount / (double) batchCount);
+        } finally {
+            leaderLock.unlock();
+        }
+    }
+}
@@ -5,8 +5,6 @@ import static com.example.edgedashanalytics.page.main.MainActivity.I_TAG;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Matrix;
 import android.graphics.PointF;
 import android.graphics.RectF;
 import android.util.Log;
@@ -15,26 +13,22 @@ import androidx.preference.PreferenceManager;
 
 import com.example.edgedashanalytics.R;
 
-import org.apache.commons.lang3.ArrayUtils;
-import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
-import org.tensorflow.lite.support.common.FileUtil;
-import org.tensorflow.lite.support.image.ImageProcessor;
-import org.tensorflow.lite.support.image.TensorImage;
-import org.tensorflow.lite.support.image.ops.ResizeOp;
-import org.tensorflow.lite.support.image.ops.ResizeWithCropOrPadOp;
-import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.StringJoiner;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 
 // https://www.tensorflow.org/lite/examples/pose_estimation/overview
@@ -45,185 +39,484 @@ public class InnerAnalysis extends VideoAnalysis {
     private static final String TAG = InnerAnalysis.class.getSimpleName();
 
     private static final float MIN_SCORE = 0.2f;
+    // Time that the first frame of a batch waits for other frames to join
+    private static final long BATCH_WINDOW_MS = 4;
+    private static final DelegateBenchmark.Delegate DEFAULT_DELEGATE = DelegateBenchmark.Delegate.XNNPACK;
+    private static final float DELEGATE_TOLERANCE = 0.02f;
+
+    // Crop of each frame size, videos analysed at the same time may have different resolutions
+    private static final Map<Long, Crop> crops = new ConcurrentHashMap<>();
+    // Keypoint coordinates and scores of batched frames, which aren't run on a pooled interpreter's scratch space
+    private static final ThreadLocal<float[]> batchCoordinates =
+            ThreadLocal.withInitial(() -> new float[BodyPart.LOWER_INDEX * 2]);
+    private static final ThreadLocal<float[]> batchScores =
+            ThreadLocal.withInitial(() -> new float[BodyPart.LOWER_INDEX]);
+
+    private static Future<?> loading = null;
+    // Replaced when the model changes, see ModelPool
+    private static volatile ModelPool<PoseInterpreter> pool = null;
 
-    private static int inputWidth;
-    private static int inputHeight;
-    private static int[] outputShape;
+    public InnerAnalysis(Context context) {
+        super(context);
+        Context appContext = context.getApplicationContext();
 
-    private static RectF cropRegion;
+        preloadModels(appContext);
 
-    private static final BlockingQueue<Interpreter> interpreterQueue = new LinkedBlockingQueue<>(THREAD_NUM);
-    private static final BlockingQueue<ImageProcessor> processorQueue = new LinkedBlockingQueue<>(THREAD_NUM);
+        Runnable reload = () -> loadModels(appContext);
+        ModelRegistry.reloadOnChange(appContext, context.getString(R.string.pose_model_key), reload);
+        ModelRegistry.reloadOnChange(appContext, context.getString(R.string.batch_size_key), reload);
+    }
 
-    public InnerAnalysis(Context context) {
-        super(context);
+    /**
+     * Builds and warms up a pool of the current pose model, then swaps it in place of the previous pool.
+     * Frames that are being analysed finish with the previous pool, which is closed once they have.
+     * Only runs on the registry's loader thread, so loads never overlap.
+     */
+    private static void loadModels(Context context) {
+        long start = System.nanoTime();
+        String modelFilename = getModelFilename(context);
+        ThreadCalibration.Config threads = ThreadCalibration.get(context, modelFilename);
+        DelegateBenchmark.Delegate delegate = DelegateBenchmark.get(context, modelFilename, DEFAULT_DELEGATE);
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
+        int batchSize = Integer.parseInt(pref.getString(context.getString(R.string.batch_size_key), "1"));
+
+        ModelRegistry.ModelInfo model;
+        InferenceBatcher newBatcher = null;
+        List<PoseInterpreter> instances = new ArrayList<>(threads.analysisThreads);
 
-        if (!interpreterQueue.isEmpty()) {
+        try {
+            model = ModelRegistry.get(context, modelFilename);
+
+            // Threads of every video share the analysis threads, a larger batch would never fill up
+            batchSize = Math.min(batchSize, threads.analysisThreads);
+            if (batchSize > 1) {
+                newBatcher = new InferenceBatcher(createInterpreter(model, threads.interpreterThreads, delegate),
+                        batchSize, BATCH_WINDOW_MS);
+            }
+            for (int i = 0; i < threads.analysisThreads; i++) {
+                instances.add(new PoseInterpreter(
+                        createInterpreter(model, threads.interpreterThreads, delegate), newBatcher));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(I_TAG, String.format("Model failure:\n  %s", e.getMessage()));
+
+            for (PoseInterpreter instance : instances) {
+                instance.interpreter.close();
+            }
+            if (newBatcher != null) {
+                newBatcher.close();
+            }
+            if (pool == null) {
+                // Fails the loading future, analysis can't run without a pool
+                throw new IllegalStateException(String.format("Could not load %s", modelFilename), e);
+            }
+            // Analysis carries on with the previous pool
             return;
         }
 
-        String defaultModel = context.getString(R.string.default_pose_model_key);
-        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
-        String modelFilename = pref.getString(context.getString(R.string.pose_model_key), defaultModel);
+        ModelPool<PoseInterpreter> newPool = new ModelPool<>(model, threads, delegate, instances,
+                instance -> instance.interpreter.close());
+        if (newBatcher != null) {
+            newPool.addResource(newBatcher);
+        }
+        long loadNanos = System.nanoTime() - start;
+        long warmUpNanos = warmUp(newPool);
+        Log.i(I_TAG, String.format(Locale.ENGLISH, "Loaded %s in %.2fms, warm-up took %.2fms",
+                modelFilename, loadNanos / 1e6, warmUpNanos / 1e6));
+
+        ModelPool<PoseInterpreter> oldPool = pool;
+        pool = newPool;
+
+        if (oldPool != null) {
+            oldPool.retire();
+            Log.i(I_TAG, String.format("Swapped pose model to %s", modelFilename));
+        }
+    }
+
+    /**
+     * Loads and warms up the models in the background, unless they have already been loaded or are loading
+     *
+     * @return completes once the models have been loaded, fails if they couldn't be loaded
+     */
+    static synchronized Future<?> preloadModels(Context context) {
+        if (loading == null || (loading.isDone() && pool == null)) {
+            Context appContext = context.getApplicationContext();
+            loading = ModelRegistry.submit(() -> loadModels(appContext));
+        }
+        return loading;
+    }
+
+    Future<?> preload(Context context) {
+        return preloadModels(context);
+    }
+
+    boolean isLoaded() {
+        return pool != null;
+    }
+
+    /**
+     * Rebuilds the pool in the background if it has been loaded, e.g. after calibration
+     */
+    static synchronized void reloadModels(Context context) {
+        if (pool != null) {
+            Context appContext = context.getApplicationContext();
+            loading = ModelRegistry.submit(() -> loadModels(appContext));
+        }
+    }
+
+    /**
+     * @return batcher shared by the interpreters of the pool, null if batching is disabled
+     */
+    private static InferenceBatcher getBatcher(ModelPool<PoseInterpreter> models) {
+        return models.getInstances().get(0).batcher;
+    }
+
+    /**
+     * Runs each interpreter once, so that the first frame doesn't pay for delegate initialisation and allocation
+     *
+     * @return duration of the warm-up in nanoseconds
+     */
+    private static long warmUp(ModelPool<PoseInterpreter> models) {
+        long start = System.nanoTime();
+        int[] inputShape = models.model.inputShape;
+        Bitmap frame = ThreadCalibration.createSampleFrame(inputShape[1], inputShape[2]);
 
+        for (PoseInterpreter pose : models.getInstances()) {
+            pose.run(frame, inputShape[1], inputShape[2]);
+        }
+        frame.recycle();
+        return System.nanoTime() - start;
+    }
+
+    private static Interpreter createInterpreter(ModelRegistry.ModelInfo model, int numThreads,
+                                                 DelegateBenchmark.Delegate delegate) {
         Interpreter.Options options = new Interpreter.Options();
-        options.setUseXNNPACK(true);
-        options.setNumThreads(TF_THREAD_NUM);
+        options.setNumThreads(numThreads);
+
+        switch (delegate) {
+            case CPU:
+                options.setUseXNNPACK(false);
+                break;
+            case XNNPACK:
+                options.setUseXNNPACK(true);
+                break;
+            case XNNPACK_FP16:
+                options.setUseXNNPACK(true);
+                options.setAllowFp16PrecisionForFp32(true);
+                break;
+            case NNAPI:
+                options.setUseNNAPI(true);
+                break;
+        }
 
-        for (int i = 0; i < THREAD_NUM; i++) {
-            try {
-                interpreterQueue.add(new Interpreter(FileUtil.loadMappedFile(context, modelFilename), options));
-            } catch (IOException e) {
-                Log.w(I_TAG, String.format("Model failure:\n  %s", e.getMessage()));
+        return new Interpreter(model.buffer, options);
+    }
+
+    static String getModelFilename(Context context) {
+        String defaultModel = context.getString(R.string.default_pose_model_key);
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
+        return pref.getString(context.getString(R.string.pose_model_key), defaultModel);
+    }
+
+    /**
+     * @param frames run in turn, owned by the caller
+     */
+    private static SampleModel createSampleModel(Context context, String modelFilename, int numThreads,
+                                                 DelegateBenchmark.Delegate delegate, List<Bitmap> frames)
+            throws IOException {
+        ModelRegistry.ModelInfo model = ModelRegistry.get(context, modelFilename);
+        PoseInterpreter pose = new PoseInterpreter(createInterpreter(model, numThreads, delegate), null);
+
+        return new SampleModel() {
+            private int next = 0;
+
+            @Override
+            public float[] run() {
+                Bitmap frame = frames.get(next++ % frames.size());
+                return pose.run(frame, model.inputShape[1], model.inputShape[2]);
             }
-        }
 
-        try (Interpreter interpreter = interpreterQueue.peek()) {
-            if (interpreter != null) {
-                inputWidth = interpreter.getInputTensor(0).shape()[1];
-                inputHeight = interpreter.getInputTensor(0).shape()[2];
-                outputShape = interpreter.getOutputTensor(0).shape();
+            @Override
+            public void close() {
+                pose.interpreter.close();
             }
+        };
+    }
+
+    /**
+     * Runs the current pose model on a sample clip of the inner camera, for {@link ThreadCalibration}
+     */
+    static ThreadCalibration.Config calibrateThreads(Context context) {
+        String modelFilename = getModelFilename(context);
+        DelegateBenchmark.Delegate delegate = DelegateBenchmark.get(context, modelFilename, DEFAULT_DELEGATE);
+        int[] inputShape;
+
+        try {
+            inputShape = ModelRegistry.get(context, modelFilename).inputShape;
+        } catch (IOException e) {
+            Log.w(I_TAG, String.format("Cannot calibrate %s:\n  %s", modelFilename, e.getMessage()));
+            return ThreadCalibration.get(context, modelFilename);
         }
+
+        return ThreadCalibration.calibrate(context, modelFilename, true, inputShape[1], inputShape[2],
+                (numThreads, clip) -> createSampleModel(context, modelFilename, numThreads, delegate, clip));
     }
 
-    InnerFrame processFrame(Bitmap bitmap, int frameIndex, float scaleFactor) {
-        float totalScore = 0;
-        int numKeyPoints = outputShape[2];
-
-        RectF rect = new RectF(
-                cropRegion.left * bitmap.getWidth(),
-                cropRegion.top * bitmap.getHeight(),
-                cropRegion.right * bitmap.getWidth(),
-                cropRegion.bottom * bitmap.getHeight()
-        );
-        Bitmap detectBitmap = Bitmap.createBitmap((int) rect.width(), (int) rect.height(),
-                Bitmap.Config.ARGB_8888);
-        // Might just be for visualisation, may be unnecessary
-        Canvas canvas = new Canvas(detectBitmap);
-        canvas.drawBitmap(bitmap, -rect.left, -rect.top, null);
-
-        ImageProcessor imageProcessor;
+    /**
+     * Benchmarks the current pose model.
+     * Pose models output normalised coordinates and scores, so the tolerance is a fraction of the frame or score
+     */
+    static DelegateBenchmark.Delegate benchmarkDelegates(Context context) {
+        String modelFilename = getModelFilename(context);
+        int numThreads = ThreadCalibration.get(context, modelFilename).interpreterThreads;
+
+        int[] inputShape;
 
         try {
-            imageProcessor = processorQueue.poll(200, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            Log.w(I_TAG, String.format("Cannot acquire processor for frame %s:\n  %s", frameIndex, e.getMessage()));
-            return null;
+            inputShape = ModelRegistry.get(context, modelFilename).inputShape;
+        } catch (IOException e) {
+            Log.w(I_TAG, String.format("Cannot benchmark %s:\n  %s", modelFilename, e.getMessage()));
+            return DelegateBenchmark.get(context, modelFilename, DEFAULT_DELEGATE);
         }
+        // Every delegate runs the same frame, so that their outputs can be compared
+        List<Bitmap> frames = Collections.singletonList(
+                ThreadCalibration.createSampleFrame(inputShape[1], inputShape[2]));
 
-        if (imageProcessor == null) {
-            Log.w(I_TAG, String.format("Processor for frame %s is null", frameIndex));
-            return null;
+        try {
+            return DelegateBenchmark.benchmark(context, modelFilename,
+                    Arrays.asList(DelegateBenchmark.Delegate.values()), DEFAULT_DELEGATE, DELEGATE_TOLERANCE,
+                    delegate -> createSampleModel(context, modelFilename, numThreads, delegate, frames));
+        } finally {
+            frames.get(0).recycle();
         }
+    }
 
-        TensorImage inputTensor = imageProcessor.process(TensorImage.fromBitmap(bitmap));
+    /**
+     * Pooled interpreter, together with the preprocessor that owns its input buffer and preallocated output buffers
+     */
+    private static class PoseInterpreter {
+        final Interpreter interpreter;
+        final ImagePreprocessor preprocessor;
+        // Shared by every interpreter of the pool, null if batching is disabled
+        final InferenceBatcher batcher;
+
+        final ByteBuffer outputBuffer;
+        final FloatBuffer outputFloats;
+        final float[] output;
+        // Keypoint coordinates as x, y pairs, indexed by BodyPart ordinal
+        final float[] coordinates = new float[BodyPart.LOWER_INDEX * 2];
+        final float[] scores = new float[BodyPart.LOWER_INDEX];
+
+        PoseInterpreter(Interpreter interpreter, InferenceBatcher batcher) {
+            this.interpreter = interpreter;
+            this.preprocessor = new ImagePreprocessor(interpreter.getInputTensor(0).dataType());
+            this.batcher = batcher;
+
+            int outputSize = interpreter.getOutputTensor(0).numElements();
+            this.outputBuffer = ByteBuffer.allocateDirect(outputSize * Float.BYTES).order(ByteOrder.nativeOrder());
+            this.outputFloats = outputBuffer.asFloatBuffer();
+            this.output = new float[outputSize];
+        }
 
-        try {
-            processorQueue.put(imageProcessor);
-        } catch (InterruptedException e) {
-            Log.w(TAG, String.format("Unable to return processor to queue:\n  %s", e.getMessage()));
+        /**
+         * Runs the model on the whole frame without batching, for warm-up and benchmarks
+         */
+        float[] run(Bitmap frame, int inputWidth, int inputHeight) {
+            ByteBuffer input = preprocessor.process(frame, 0, 0, frame.getWidth(), frame.getHeight(),
+                    inputWidth, inputHeight);
+            outputBuffer.rewind();
+            interpreter.run(input, outputBuffer);
+
+            outputFloats.rewind();
+            outputFloats.get(output);
+            return output;
         }
+    }
+
+    InnerFrame processFrame(Bitmap bitmap, int frameIndex, AnalysisContext job) {
+        CancellationToken token = job.token;
+        PipelineStats stats = job.stats;
+        Crop crop = getCrop(bitmap.getWidth(), bitmap.getHeight());
 
-        TensorBuffer outputTensor = TensorBuffer.createFixedSize(outputShape, DataType.FLOAT32);
-        float widthRatio = detectBitmap.getWidth() / (float) inputWidth;
-        float heightRatio = detectBitmap.getHeight() / (float) inputHeight;
+        long stageStart = System.nanoTime();
+        ModelPool<PoseInterpreter> models = pool;
+        InferenceBatcher batcher = models != null ? getBatcher(models) : null;
 
-        Interpreter interpreter;
+        // Batched frames only pin the pool for its batcher, so that threads waiting for the rest of a batch don't
+        // hold interpreters
+        if (batcher != null && batcher.isEnabled() && models.pin()) {
+            InnerFrame frame = null;
+            float[] output = null;
+
+            try {
+                ByteBuffer input = batcher.getPreprocessor().process(bitmap, crop.left, crop.top, crop.size,
+                        crop.size, models.model.inputShape[1], models.model.inputShape[2]);
+                stageStart = stats.record(PipelineStats.Stage.PREPROCESS, stageStart);
+                if (token.shouldStop()) {
+                    return null;
+                }
+
+                output = batcher.run(input);
+                if (output != null) {
+                    // Includes waiting for the rest of the batch
+                    stageStart = stats.record(PipelineStats.Stage.INFERENCE, stageStart);
+                    frame = createFrame(output, models, bitmap, crop, frameIndex, job.scaleFactor,
+                            batchCoordinates.get(), batchScores.get());
+                    stats.record(PipelineStats.Stage.POSTPROCESS, stageStart);
+                }
+            } finally {
+                models.unpin();
+            }
+
+            if (output != null) {
+                logFrame(frame);
+                return frame;
+            }
+            // Batching has been disabled, run the frame on a pooled interpreter instead
+            stageStart = System.nanoTime();
+        }
+
+        PoseInterpreter pose;
         try {
-            interpreter = interpreterQueue.poll(200, TimeUnit.MILLISECONDS);
+            // Waits until an interpreter is free instead of dropping the frame, as concurrent videos share the pool.
+            // Polls so that it moves on to the new pool if the model is swapped while waiting.
+            do {
+                models = pool;
+                if (models == null) {
+                    Log.w(I_TAG, String.format("No pose model loaded for frame %s", frameIndex));
+                    return null;
+                }
+                pose = models.acquire(200, TimeUnit.MILLISECONDS);
+            } while (pose == null && (models.isRetired() || !token.shouldStop()));
         } catch (InterruptedException e) {
             Log.w(I_TAG, String.format("Cannot acquire interpreter for frame %s:\n  %s", frameIndex, e.getMessage()));
             return null;
         }
 
-        if (interpreter == null) {
+        if (pose == null) {
             Log.w(I_TAG, String.format("Interpreter for frame %s is null", frameIndex));
             return null;
         }
+        if (token.shouldStop()) {
+            models.release(pose);
+            return null;
+        }
+        stageStart = stats.record(PipelineStats.Stage.MODEL_WAIT, stageStart);
 
-        interpreter.run(inputTensor.getBuffer(), outputTensor.getBuffer().rewind());
-
+        InnerFrame frame;
         try {
-            interpreterQueue.put(interpreter);
-        } catch (InterruptedException e) {
-            Log.w(TAG, String.format("Unable to return interpreter to queue:\n  %s", e.getMessage()));
+            // Equivalent to ResizeWithCropOrPadOp followed by ResizeOp, without the intermediate images
+            ByteBuffer input = pose.preprocessor.process(bitmap, crop.left, crop.top, crop.size, crop.size,
+                    models.model.inputShape[1], models.model.inputShape[2]);
+            stageStart = stats.record(PipelineStats.Stage.PREPROCESS, stageStart);
+            if (token.shouldStop()) {
+                return null;
+            }
+
+            pose.outputBuffer.rewind();
+            pose.interpreter.run(input, pose.outputBuffer);
+
+            pose.outputFloats.rewind();
+            pose.outputFloats.get(pose.output);
+            stageStart = stats.record(PipelineStats.Stage.INFERENCE, stageStart);
+
+            frame = createFrame(pose.output, models, bitmap, crop, frameIndex, job.scaleFactor,
+                    pose.coordinates, pose.scores);
+            stats.record(PipelineStats.Stage.POSTPROCESS, stageStart);
+        } finally {
+            models.release(pose);
         }
 
-        float[] output = outputTensor.getFloatArray();
-        List<Float> positions = new ArrayList<>();
-        List<KeyPoint> keyPoints = new ArrayList<>();
+        logFrame(frame);
+        return frame;
+    }
+
+    /**
+     * Converts the model's output to keypoints in the coordinates of the original frame
+     *
+     * @param models      pool that the output came from, its model may have been swapped since
+     * @param coordinates scratch space for keypoint coordinates as x, y pairs, indexed by BodyPart ordinal
+     * @param scores      scratch space for keypoint scores, indexed by BodyPart ordinal
+     */
+    private InnerFrame createFrame(float[] output, ModelPool<PoseInterpreter> models, Bitmap bitmap, Crop crop,
+                                   int frameIndex, float scaleFactor, float[] coordinates, float[] scores) {
+        float cropX = crop.region.left * bitmap.getWidth();
+        float cropY = crop.region.top * bitmap.getHeight();
+        // Only the dimensions of the crop region are needed, no need to draw the cropped bitmap
+        int detectWidth = (int) (crop.region.width() * bitmap.getWidth());
+        int detectHeight = (int) (crop.region.height() * bitmap.getHeight());
+        int numKeyPoints = Math.min(models.model.outputShape[2], BodyPart.LOWER_INDEX);
+
+        List<KeyPoint> keyPoints = new ArrayList<>(numKeyPoints);
+        float totalScore = 0;
 
         // Don't bother keeping results for keyPoints of lower body parts,
         //  lower body part indexes start at BodyPart.LOWER_INDEX
-        for (int a = 0; a < numKeyPoints && a < BodyPart.LOWER_INDEX; a++) {
-            float x = output[a * 3 + 1] * inputWidth * widthRatio;
-            float y = output[a * 3] * inputHeight * heightRatio;
+        for (int a = 0; a < numKeyPoints; a++) {
+            // Adjust keypoint coordinates to align with original bitmap dimensions
+            float x = (output[a * 3 + 1] * detectWidth + cropX) * scaleFactor;
+            float y = (output[a * 3] * detectHeight + cropY) * scaleFactor;
+            float score = output[a * 3 + 2];
 
-            positions.add(x);
-            positions.add(y);
+            coordinates[a * 2] = x;
+            coordinates[a * 2 + 1] = y;
+            scores[a] = score;
 
-            float score = output[a * 3 + 2];
             keyPoints.add(new KeyPoint(BodyPart.AS_ARRAY[a], new PointF(x, y), score));
             totalScore += score;
         }
 
-        // Adjust keypoint coordinates to align with original bitmap dimensions
-        Matrix matrix = new Matrix();
-        float[] points = ArrayUtils.toPrimitive(positions.toArray(new Float[0]), 0f);
+        int origHeight = (int) (bitmap.getHeight() * scaleFactor);
+        boolean distracted = numKeyPoints == BodyPart.LOWER_INDEX && isDistracted(coordinates, scores, origHeight);
 
-        matrix.postTranslate(rect.left, rect.top);
-        matrix.mapPoints(points);
+        return new InnerFrame(frameIndex, distracted, totalScore, keyPoints, origHeight);
+    }
 
-        for (int i = 0; i < keyPoints.size(); i++) {
-            keyPoints.get(i).coordinate = new PointF(points[i * 2] * scaleFactor, points[i * 2 + 1] * scaleFactor);
+    private void logFrame(InnerFrame frame) {
+        if (!verbose) {
+            return;
         }
+        String resultHead = String.format(Locale.ENGLISH,
+                "Analysis completed for frame: %04d\nKeyPoints:\n", frame.frame);
+        StringBuilder builder = new StringBuilder(resultHead);
 
-        if (verbose) {
-            String resultHead = String.format(Locale.ENGLISH,
-                    "Analysis completed for frame: %04d\nKeyPoints:\n", frameIndex);
-            StringBuilder builder = new StringBuilder(resultHead);
-
-            for (KeyPoint keyPoint : keyPoints) {
-                builder.append("  ");
-                builder.append(keyPoint.toString());
-                builder.append('\n');
-            }
+        for (KeyPoint keyPoint : frame.keyPoints) {
+            builder.append("  ");
+            builder.append(keyPoint.toString());
             builder.append('\n');
-
-            String resultMessage = builder.toString();
-            Log.v(TAG, resultMessage);
         }
+        builder.append('\n');
 
-        int origWidth = (int) (bitmap.getWidth() * scaleFactor);
-        int origHeight = (int) (bitmap.getHeight() * scaleFactor);
-
-        boolean distracted = isDistracted(keyPoints, origWidth, origHeight);
-        return new InnerFrame(frameIndex, distracted, totalScore, keyPoints);
+        String resultMessage = builder.toString();
+        Log.v(TAG, resultMessage);
     }
 
-    void setup(int width, int height) {
-        if (!processorQueue.isEmpty()) {
-            return;
-        }
-        int size = Math.min(height, width);
-        cropRegion = initRectF(width, height);
-
-        for (int i = 0; i < THREAD_NUM; i++) {
-            processorQueue.add(new ImageProcessor.Builder()
-                    .add(new ResizeWithCropOrPadOp(size, size))
-                    .add(new ResizeOp(inputHeight, inputWidth, ResizeOp.ResizeMethod.BILINEAR))
-                    .build());
+    private static class Crop {
+        // Square region that is cropped from the centre of each frame before resizing
+        final int left;
+        final int top;
+        final int size;
+        final RectF region;
+
+        Crop(int width, int height) {
+            this.size = Math.min(height, width);
+            this.left = (width - size) / 2;
+            this.top = (height - size) / 2;
+            this.region = initRectF(width, height);
         }
     }
 
+    private static Crop getCrop(int width, int height) {
+        return crops.computeIfAbsent(((long) width << 32) | height, k -> new Crop(width, height));
+    }
+
     /**
      * Defines the default crop region.
      * The function provides the initial crop region (pads the full image from both
      * sides to make it a square image) when the algorithm cannot reliably determine
      * the crop region from the previous frame.
      */
-    private RectF initRectF(int imageWidth, int imageHeight) {
+    private static RectF initRectF(int imageWidth, int imageHeight) {
         float xMin;
         float yMin;
         float width;
@@ -243,31 +536,56 @@ public class InnerAnalysis extends VideoAnalysis {
         return new RectF(xMin, yMin, xMin + width, yMin + height);
     }
 
+    /**
+     * Re-evaluates distraction of tracked key points, see {@link #isDistracted(float[], float[], int)}
+     *
+     * @param keyPoints key points in the coordinates of the original frame
+     * @return false if key points of any upper body part are missing
+     */
+    static boolean isDistracted(List<KeyPoint> keyPoints, int imageHeight) {
+        if (keyPoints.size() < BodyPart.LOWER_INDEX) {
+            return false;
+        }
+        float[] coordinates = new float[BodyPart.LOWER_INDEX * 2];
+        float[] scores = new float[BodyPart.LOWER_INDEX];
+
+        for (KeyPoint keyPoint : keyPoints) {
+            int a = keyPoint.bodyPart.ordinal();
+            if (a < BodyPart.LOWER_INDEX) {
+                coordinates[a * 2] = keyPoint.coordinate.x;
+                coordinates[a * 2 + 1] = keyPoint.coordinate.y;
+                scores[a] = keyPoint.score;
+            }
+        }
+        return isDistracted(coordinates, scores, imageHeight);
+    }
+
     /**
      * Looking down, looking back (not reversing), drinking, eating, using a phone
      * Fairly basic, not very sophisticated
+     *
+     * @param coordinates keypoint x, y pairs, indexed by BodyPart ordinal
+     * @param scores      keypoint scores, indexed by BodyPart ordinal
      */
-    private boolean isDistracted(List<KeyPoint> keyPoints, int imageWidth, int imageHeight) {
-        Map<BodyPart, KeyPoint> keyDict = keyPoints.stream().collect(Collectors.toMap(k -> k.bodyPart, k -> k));
-
+    private static boolean isDistracted(float[] coordinates, float[] scores, int imageHeight) {
         boolean handsOccupied = false;
 
-        KeyPoint wristL = keyDict.get(BodyPart.LEFT_WRIST);
-        KeyPoint wristR = keyDict.get(BodyPart.RIGHT_WRIST);
+        int wristL = BodyPart.LEFT_WRIST.ordinal();
+        int wristR = BodyPart.RIGHT_WRIST.ordinal();
 
-        if (wristL != null && wristL.score >= MIN_SCORE) {
-            handsOccupied = areHandsOccupied(wristL, imageHeight);
+        if (scores[wristL] >= MIN_SCORE) {
+            handsOccupied = areHandsOccupied(coordinates[wristL * 2 + 1], imageHeight);
         }
-        if (wristR != null && wristR.score >= MIN_SCORE) {
-            handsOccupied = handsOccupied || areHandsOccupied(wristR, imageHeight);
+        if (scores[wristR] >= MIN_SCORE) {
+            handsOccupied = handsOccupied || areHandsOccupied(coordinates[wristR * 2 + 1], imageHeight);
         }
 
-        KeyPoint eyeL = keyDict.get(BodyPart.LEFT_EYE);
-        KeyPoint eyeR = keyDict.get(BodyPart.RIGHT_EYE);
-        KeyPoint earL = keyDict.get(BodyPart.LEFT_EAR);
-        KeyPoint earR = keyDict.get(BodyPart.RIGHT_EAR);
+        float eyeLY = coordinates[BodyPart.LEFT_EYE.ordinal() * 2 + 1];
+        float eyeRY = coordinates[BodyPart.RIGHT_EYE.ordinal() * 2 + 1];
+        float earLY = coordinates[BodyPart.LEFT_EAR.ordinal() * 2 + 1];
+        float earRY = coordinates[BodyPart.RIGHT_EAR.ordinal() * 2 + 1];
 
-        boolean eyesOccupied = areEyesOccupied(eyeL, earL) || areEyesOccupied(eyeR, earR);
+        boolean eyesOccupied = areEyesOccupied(eyeLY, earLY) || areEyesOccupied(eyeRY, earRY);
 
         return handsOccupied || eyesOccupied;
     }
@@ -276,48 +594,49 @@ public class InnerAnalysis extends VideoAnalysis {
      * If wrists are above 1/4 video height, then they aren't on the steering wheel and the driver is likely occupied
      * with something such as drinking or talking on the phone
      */
-    private boolean areHandsOccupied(KeyPoint wrist, int imageHeight) {
-        if (wrist == null) {
-            return false;
-        }
-        if (!(wrist.bodyPart.equals(BodyPart.LEFT_WRIST) || wrist.bodyPart.equals(BodyPart.RIGHT_WRIST))) {
-            Log.w(TAG, "Passed incorrect body part to areHandsOccupied");
-            return false;
-        }
+    private static boolean areHandsOccupied(float wristY, int imageHeight) {
         // Y coordinates are top-down, not bottom-up
-        return wrist.coordinate.y < (imageHeight * 0.75);
+        return wristY < (imageHeight * 0.75);
     }
 
     /**
      * When looking straight ahead (watching the road), the eyes are positioned above the ears
      * When looking down (such as glancing at a phone), the eyes are vertically closer to the ears
      */
-    private boolean areEyesOccupied(KeyPoint eye, KeyPoint ear) {
-        if (eye == null || ear == null) {
-            return false;
-        }
-        if (!(eye.bodyPart.equals(BodyPart.LEFT_EYE) || eye.bodyPart.equals(BodyPart.RIGHT_EYE)) ||
-                !(ear.bodyPart.equals(BodyPart.LEFT_EAR) || ear.bodyPart.equals(BodyPart.RIGHT_EAR))) {
-            Log.w(TAG, "Passed incorrect body part to areEyesOccupied");
-            return false;
-        }
-
-        double dist = ear.coordinate.y - eye.coordinate.y;
-        double threshold = ear.coordinate.y / 20.0;
+    private static boolean areEyesOccupied(float eyeY, float earY) {
+        double dist = earY - eyeY;
+        double threshold = earY / 20.0;
 
         return dist < threshold;
     }
 
+    ThreadCalibration.Config getThreadConfig() {
+        ModelPool<PoseInterpreter> models = pool;
+        return models != null ? models.threads : ThreadCalibration.getDefault();
+    }
+
     float getScaleFactor(int width) {
-        return width / (float) inputWidth;
+        ModelPool<PoseInterpreter> models = pool;
+        return models != null ? width / (float) models.model.inputShape[1] : 1;
     }
 
     public void printParameters() {
         StringJoiner paramMessage = new StringJoiner("\n  ");
         paramMessage.add("Inner analysis parameters:");
         paramMessage.add(String.format("MIN_SCORE: %s", MIN_SCORE));
-        paramMessage.add(String.format("TensorFlow Threads: %s", TF_THREAD_NUM));
-        paramMessage.add(String.format("Analysis Threads: %s", THREAD_NUM));
+        ModelPool<PoseInterpreter> models = pool;
+
+        if (models == null) {
+            paramMessage.add("Model: not loaded");
+            Log.i(I_TAG, paramMessage.toString());
+            return;
+        }
+        paramMessage.add(String.format("Model: %s", models.model.filename));
+        paramMessage.add(String.format("TensorFlow Threads: %s", models.threads.interpreterThreads));
+        paramMessage.add(String.format("Analysis Threads: %s", models.threads.analysisThreads));
+        paramMessage.add(String.format("Delegate: %s", models.delegate));
+        InferenceBatcher batcher = getBatcher(models);
+        paramMessage.add(String.format("Batching: %s", batcher == null ? "disabled" : batcher.getSummary()));
 
         Log.i(I_TAG, paramMessage.toString());
     }
@@ -1,24 +1,60 @@
 package com.example.edgedashanalytics.util.video.analysis;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.List;
 
 @SuppressWarnings({"FieldCanBeLocal", "unused"})
 public class InnerFrame extends Frame {
-    private final boolean distracted;
-    private final float fullScore;
-    private final List<KeyPoint> keyPoints;
+    final boolean distracted;
+    final float fullScore;
+    final List<KeyPoint> keyPoints;
+    // Height of the original frame, used to re-evaluate distraction of tracked key points, 0 if read from results
+    @JsonIgnore
+    private final int frameHeight;
 
     @JsonCreator
     InnerFrame(@JsonProperty("frame") int frame,
                @JsonProperty("distracted") boolean distracted,
                @JsonProperty("fullScore") float fullScore,
                @JsonProperty("keyPoints") List<KeyPoint> keyPoints) {
+        this(frame, distracted, fullScore, keyPoints, 0);
+    }
+
+    InnerFrame(int frame, boolean distracted, float fullScore, List<KeyPoint> keyPoints, int frameHeight) {
         this.frame = frame;
         this.distracted = distracted;
         this.fullScore = fullScore;
         this.keyPoints = keyPoints;
+        this.frameHeight = frameHeight;
+    }
+
+    @Override
+    InnerFrame carry(int frameIndex) {
+        InnerFrame copy = new InnerFrame(frameIndex, distracted, fullScore, keyPoints, frameHeight);
+        copy.carried = true;
+        return copy;
+    }
+
+    @Override
+    InnerFrame predict(Frame previous, int frameIndex) {
+        List<KeyPoint> previousKeyPoints = previous instanceof InnerFrame ? ((InnerFrame) previous).keyPoints : null;
+        int gap = previous == null ? 0 : frame - previous.frame;
+
+        List<KeyPoint> predicted = KeyPointTracker.predict(previousKeyPoints, keyPoints, gap, frameIndex - frame);
+        // The wrists, eyes or ears may have moved enough to change whether the driver is distracted
+        boolean predictedDistracted = frameHeight > 0 ? InnerAnalysis.isDistracted(predicted, frameHeight) : distracted;
+
+        InnerFrame copy = new InnerFrame(frameIndex, predictedDistracted, fullScore, predicted, frameHeight);
+        copy.tracked = true;
+        return copy;
+    }
+
+    @Override
+    boolean isLowConfidence(Frame previous) {
+        float previousScore = previous instanceof InnerFrame ? ((InnerFrame) previous).fullScore : 0;
+        return KeyPointTracker.isLowConfidence(previousScore, keyPoints, fullScore);
     }
 }
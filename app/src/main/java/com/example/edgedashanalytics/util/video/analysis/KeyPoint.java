@@ -11,7 +11,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 class KeyPoint {
     final BodyPart bodyPart;
     final float score;
-    PointF coordinate;
+    final PointF coordinate;
 
     @JsonCreator
     KeyPoint(@JsonProperty("bodyPart") BodyPart bodyPart,
@@ -0,0 +1,60 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import android.graphics.PointF;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Propagates keypoints between sparse pose estimation runs.
+ * Keypoints follow the velocity between the two most recent estimations, damped to smooth out jitter, since a
+ * driver's movements are short and rarely continue at the same speed.
+ */
+final class KeyPointTracker {
+    private static final float MIN_SCORE = 0.2f;
+    // Fraction of the measured velocity that is carried forward
+    private static final float VELOCITY_DAMPING = 0.5f;
+    // Re-estimate when the total score drops by more than this fraction between estimations
+    private static final float MAX_SCORE_DROP = 0.2f;
+
+    private KeyPointTracker() {
+    }
+
+    /**
+     * @param previous keypoints of the estimation before latest, may be null
+     * @param gap      number of frames between the previous and latest estimation
+     * @param offset   number of frames between the latest estimation and the predicted frame
+     */
+    static List<KeyPoint> predict(List<KeyPoint> previous, List<KeyPoint> latest, int gap, int offset) {
+        List<KeyPoint> predicted = new ArrayList<>(latest.size());
+
+        for (int i = 0; i < latest.size(); i++) {
+            KeyPoint keyPoint = latest.get(i);
+            float x = keyPoint.coordinate.x;
+            float y = keyPoint.coordinate.y;
+
+            // Keypoints are stored in BodyPart order, only move points that were reliably located both times
+            if (previous != null && i < previous.size() && gap > 0 && keyPoint.score >= MIN_SCORE) {
+                KeyPoint before = previous.get(i);
+
+                if (before.bodyPart == keyPoint.bodyPart && before.score >= MIN_SCORE) {
+                    float ratio = VELOCITY_DAMPING * offset / gap;
+                    x += (x - before.coordinate.x) * ratio;
+                    y += (y - before.coordinate.y) * ratio;
+                }
+            }
+            predicted.add(new KeyPoint(keyPoint.bodyPart, new PointF(x, y), keyPoint.score));
+        }
+        return predicted;
+    }
+
+    /**
+     * @return true if the latest estimation is too uncertain to be tracked reliably
+     */
+    static boolean isLowConfidence(float previousScore, List<KeyPoint> latest, float latestScore) {
+        if (latest.isEmpty() || latestScore / latest.size() < MIN_SCORE) {
+            return true;
+        }
+        return previousScore > 0 && (previousScore - latestScore) / previousScore > MAX_SCORE_DROP;
+    }
+}
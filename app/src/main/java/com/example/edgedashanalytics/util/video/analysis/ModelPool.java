@@ -0,0 +1,137 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Fixed set of instances of one model configuration, each borrowed by an analysis thread for one frame at a time.
+ * Pools are replaced rather than changed. Once retired, a pool stops lending instances and closes them when the last
+ * borrowed instance is returned, so frames in flight finish on the old model while new frames use the new pool.
+ */
+class ModelPool<T> {
+    private static final String TAG = ModelPool.class.getSimpleName();
+
+    final ModelRegistry.ModelInfo model;
+    final ThreadCalibration.Config threads;
+    final DelegateBenchmark.Delegate delegate;
+
+    private final List<T> instances;
+    private final BlockingQueue<T> available;
+    private final Consumer<T> closer;
+    // Closed together with the instances, e.g. an interpreter shared by all instances
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    private int borrowed = 0;
+    private boolean retired = false;
+
+    ModelPool(ModelRegistry.ModelInfo model, ThreadCalibration.Config threads, DelegateBenchmark.Delegate delegate,
+              List<T> instances, Consumer<T> closer) {
+        this.model = model;
+        this.threads = threads;
+        this.delegate = delegate;
+        this.instances = instances;
+        this.available = new LinkedBlockingQueue<>(instances);
+        this.closer = closer;
+    }
+
+    void addResource(AutoCloseable resource) {
+        resources.add(resource);
+    }
+
+    /**
+     * @return every instance, whether borrowed or not, only for use before the pool is swapped in or to read state
+     * that the instances share
+     */
+    List<T> getInstances() {
+        return Collections.unmodifiableList(instances);
+    }
+
+    /**
+     * @return a borrowed instance, or null if none became available within the timeout or the pool was retired
+     */
+    T acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        T instance = available.poll(timeout, unit);
+
+        if (instance == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (retired) {
+                return null;
+            }
+            borrowed++;
+        }
+        return instance;
+    }
+
+    /**
+     * Not interruptible, so that instances are returned even when analysis is stopped
+     */
+    synchronized void release(T instance) {
+        borrowed--;
+
+        if (!retired) {
+            available.offer(instance);
+        } else if (borrowed == 0) {
+            close();
+        }
+    }
+
+    /**
+     * Keeps the pool open without borrowing an instance, for threads that only use its shared resources
+     *
+     * @return false if the pool was retired, its resources may already be closed
+     */
+    synchronized boolean pin() {
+        if (retired) {
+            return false;
+        }
+        borrowed++;
+        return true;
+    }
+
+    synchronized void unpin() {
+        borrowed--;
+
+        if (retired && borrowed == 0) {
+            close();
+        }
+    }
+
+    synchronized boolean isRetired() {
+        return retired;
+    }
+
+    synchronized void retire() {
+        if (retired) {
+            return;
+        }
+        retired = true;
+
+        if (borrowed == 0) {
+            close();
+        }
+    }
+
+    private void close() {
+        for (T instance : instances) {
+            closer.accept(instance);
+        }
+        for (AutoCloseable resource : resources) {
+            try {
+                resource.close();
+            } catch (Exception e) {
+                Log.w(TAG, String.format("Could not close resource of %s:\n  %s", model.filename, e.getMessage()));
+            }
+        }
+        available.clear();
+        Log.d(TAG, String.format("Closed pool of %s", model.filename));
+    }
+}
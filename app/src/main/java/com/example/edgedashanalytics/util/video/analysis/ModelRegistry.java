@@ -0,0 +1,92 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.support.common.FileUtil;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Maps each model file once and caches its tensor shapes, so that every interpreter and detector of a model shares
+ * the same read-only buffer.
+ * Also reloads model pools in the background when the preferences they were built from change.
+ */
+class ModelRegistry {
+    private static final String TAG = ModelRegistry.class.getSimpleName();
+
+    private static final Map<String, ModelInfo> models = new HashMap<>();
+    // Preference key to the reload of the pools built from it
+    private static final Map<String, Runnable> reloads = new HashMap<>();
+    private static final ExecutorService loader = Executors.newSingleThreadExecutor();
+    // Preferences only hold a weak reference to their listeners
+    private static SharedPreferences.OnSharedPreferenceChangeListener listener = null;
+
+    static class ModelInfo {
+        final String filename;
+        final MappedByteBuffer buffer;
+        final int[] inputShape;
+        final DataType inputType;
+        final int[] outputShape;
+
+        private ModelInfo(String filename, MappedByteBuffer buffer) {
+            this.filename = filename;
+            this.buffer = buffer;
+
+            try (Interpreter interpreter = new Interpreter(buffer)) {
+                this.inputShape = interpreter.getInputTensor(0).shape();
+                this.inputType = interpreter.getInputTensor(0).dataType();
+                this.outputShape = interpreter.getOutputTensor(0).shape();
+            }
+        }
+    }
+
+    static synchronized ModelInfo get(Context context, String modelFilename) throws IOException {
+        ModelInfo model = models.get(modelFilename);
+
+        if (model == null) {
+            model = new ModelInfo(modelFilename, FileUtil.loadMappedFile(context, modelFilename));
+            models.put(modelFilename, model);
+            Log.d(TAG, String.format("Mapped %s, %s bytes", modelFilename, model.buffer.capacity()));
+        }
+        return model;
+    }
+
+    /**
+     * Runs the reload on the loader thread whenever the preference changes
+     */
+    static synchronized void reloadOnChange(Context context, String prefKey, Runnable reload) {
+        reloads.put(prefKey, reload);
+
+        if (listener == null) {
+            listener = (pref, key) -> {
+                Runnable changed;
+                synchronized (ModelRegistry.class) {
+                    changed = reloads.get(key);
+                }
+                if (changed != null) {
+                    submit(changed);
+                }
+            };
+            PreferenceManager.getDefaultSharedPreferences(context).registerOnSharedPreferenceChangeListener(listener);
+        }
+    }
+
+    /**
+     * Loads models on the loader thread, loads run one at a time in submission order
+     */
+    static Future<?> submit(Runnable load) {
+        return loader.submit(load);
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+
+/**
+ * Cheap frame difference check on a downsampled luma plane, used to skip inference on near-duplicate frames,
+ * such as when stopped at traffic lights or when the driver is sitting still.
+ * Frames are compared to the last frame that was analysed, not the previous frame, so slow drift still triggers.
+ * Not thread-safe, only used by the decoding loop.
+ */
+class MotionGate {
+    // Width of the downsampled luma plane, height follows the aspect ratio of the frame
+    private static final int GRID_WIDTH = 32;
+
+    // Mean absolute luma difference (0-255) below which frames are considered unchanged, disabled if <= 0
+    private final float threshold;
+
+    private int[] pixels;
+    private int[] reference;
+    private int[] current;
+    private int[] counts;
+    private boolean hasReference = false;
+
+    MotionGate(float threshold) {
+        this.threshold = threshold;
+    }
+
+    boolean isEnabled() {
+        return threshold > 0;
+    }
+
+    /**
+     * @return true if the frame has barely changed since the last analysed frame, and can reuse its result.
+     * Otherwise the frame becomes the new reference frame.
+     */
+    boolean isUnchanged(Bitmap bitmap) {
+        if (!isEnabled()) {
+            return false;
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int gridWidth = Math.min(GRID_WIDTH, width);
+        int gridHeight = Math.max(1, gridWidth * height / width);
+        int cells = gridWidth * gridHeight;
+
+        if (pixels == null || pixels.length < width * height) {
+            pixels = new int[width * height];
+        }
+        if (current == null || current.length != cells) {
+            current = new int[cells];
+            reference = new int[cells];
+            counts = new int[cells];
+            hasReference = false;
+        }
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        // Box filter each cell, averaging reduces the effect of sensor noise and compression artefacts
+        Arrays.fill(current, 0);
+        Arrays.fill(counts, 0);
+
+        for (int y = 0; y < height; y++) {
+            int cellRow = (y * gridHeight / height) * gridWidth;
+            int row = y * width;
+
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[row + x];
+                // BT.601 luma, scaled by 256
+                int luma = 77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff);
+                int cell = cellRow + x * gridWidth / width;
+                current[cell] += luma;
+                counts[cell]++;
+            }
+        }
+
+        long totalDiff = 0;
+        for (int i = 0; i < cells; i++) {
+            current[i] = counts[i] == 0 ? 0 : (current[i] / counts[i]) >> 8;
+            totalDiff += Math.abs(current[i] - reference[i]);
+        }
+
+        if (hasReference && totalDiff / (float) cells < threshold) {
+            return true;
+        }
+
+        int[] swap = reference;
+        reference = current;
+        current = swap;
+        hasReference = true;
+        return false;
+    }
+
+    /**
+     * Forgets the reference frame, e.g. when it was never analysed, so the next frame is always analysed
+     */
+    void reset() {
+        hasReference = false;
+    }
+}
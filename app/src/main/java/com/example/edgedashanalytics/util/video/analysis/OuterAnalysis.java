@@ -5,6 +5,7 @@ import static com.example.edgedashanalytics.page.main.MainActivity.I_TAG;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.util.Log;
@@ -13,8 +14,6 @@ import androidx.preference.PreferenceManager;
 
 import com.example.edgedashanalytics.R;
 
-import org.tensorflow.lite.Interpreter;
-import org.tensorflow.lite.support.common.FileUtil;
 import org.tensorflow.lite.support.image.TensorImage;
 import org.tensorflow.lite.support.label.Category;
 import org.tensorflow.lite.task.core.BaseOptions;
@@ -24,11 +23,11 @@ import org.tensorflow.lite.task.vision.detector.ObjectDetector;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.StringJoiner;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 // https://www.tensorflow.org/lite/models/object_detection/overview
@@ -44,61 +43,290 @@ public class OuterAnalysis extends VideoAnalysis {
     //  MobileNet's is 10, EfficientDet's is 25
     private static final int MAX_DETECTIONS = -1;
     private static final float MIN_SCORE = 0.2f;
+    private static final float DELEGATE_TOLERANCE = 0.05f;
+    // Margin around the hazard zones, as a fraction of the frame, so that objects entering the zones are detected
+    private static final float ROI_MARGIN = 0.05f;
 
-    private static int inputSize;
-
-    private static final BlockingQueue<ObjectDetector> detectorQueue = new LinkedBlockingQueue<>(THREAD_NUM);
+    private static Future<?> loading = null;
+    // Replaced when the model changes, see ModelPool
+    private static volatile ModelPool<ObjectDetector> pool = null;
 
     // Include or exclude bicycles?
     private static final ArrayList<String> vehicleCategories = new ArrayList<>(Arrays.asList(
             "bicycle", "car", "motorcycle", "bus", "truck"
     ));
 
+    // Only detect objects in the region around the hazard zones
+    private final boolean roi;
+
     public OuterAnalysis(Context context) {
         super(context);
 
-        if (!detectorQueue.isEmpty()) {
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
+        this.roi = pref.getBoolean(context.getString(R.string.roi_detection_key), false);
+
+        Context appContext = context.getApplicationContext();
+
+        preloadModels(appContext);
+        ModelRegistry.reloadOnChange(appContext, context.getString(R.string.object_model_key),
+                () -> loadModels(appContext));
+    }
+
+    /**
+     * Builds and warms up a pool of the current object detection model, then swaps it in place of the previous pool.
+     * Frames that are being analysed finish with the previous pool, which is closed once they have.
+     * Only runs on the registry's loader thread, so loads never overlap.
+     */
+    private static void loadModels(Context context) {
+        long start = System.nanoTime();
+        String modelFilename = getModelFilename(context);
+        ThreadCalibration.Config threads = ThreadCalibration.get(context, modelFilename);
+        DelegateBenchmark.Delegate delegate = DelegateBenchmark.get(context, modelFilename,
+                getDefaultDelegate(context, modelFilename));
+
+        ModelRegistry.ModelInfo model;
+        List<ObjectDetector> instances = new ArrayList<>(threads.analysisThreads);
+
+        try {
+            model = ModelRegistry.get(context, modelFilename);
+
+            for (int i = 0; i < threads.analysisThreads; i++) {
+                instances.add(createDetector(model, threads.interpreterThreads, delegate, MIN_SCORE));
+            }
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            Log.w(I_TAG, String.format("Model failure:\n  %s", e.getMessage()));
+
+            for (ObjectDetector instance : instances) {
+                instance.close();
+            }
+            if (pool == null) {
+                // Fails the loading future, analysis can't run without a pool
+                throw new IllegalStateException(String.format("Could not load %s", modelFilename), e);
+            }
+            // Analysis carries on with the previous pool
             return;
         }
 
-        String defaultModel = context.getString(R.string.default_object_model_key);
-        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
-        String modelFilename = pref.getString(context.getString(R.string.object_model_key), defaultModel);
+        ModelPool<ObjectDetector> newPool = new ModelPool<>(model, threads, delegate, instances,
+                ObjectDetector::close);
+        long loadNanos = System.nanoTime() - start;
+        long warmUpNanos = warmUp(newPool);
+        Log.i(I_TAG, String.format(Locale.ENGLISH, "Loaded %s in %.2fms, warm-up took %.2fms",
+                modelFilename, loadNanos / 1e6, warmUpNanos / 1e6));
+
+        ModelPool<ObjectDetector> oldPool = pool;
+        pool = newPool;
 
+        if (oldPool != null) {
+            oldPool.retire();
+            Log.i(I_TAG, String.format("Swapped object detection model to %s", modelFilename));
+        }
+    }
+
+    /**
+     * Loads and warms up the models in the background, unless they have already been loaded or are loading
+     *
+     * @return completes once the models have been loaded, fails if they couldn't be loaded
+     */
+    static synchronized Future<?> preloadModels(Context context) {
+        if (loading == null || (loading.isDone() && pool == null)) {
+            Context appContext = context.getApplicationContext();
+            loading = ModelRegistry.submit(() -> loadModels(appContext));
+        }
+        return loading;
+    }
+
+    Future<?> preload(Context context) {
+        return preloadModels(context);
+    }
+
+    boolean isLoaded() {
+        return pool != null;
+    }
+
+    /**
+     * Rebuilds the pool in the background if it has been loaded, e.g. after calibration
+     */
+    static synchronized void reloadModels(Context context) {
+        if (pool != null) {
+            Context appContext = context.getApplicationContext();
+            loading = ModelRegistry.submit(() -> loadModels(appContext));
+        }
+    }
+
+    /**
+     * Runs each detector once, so that the first frame doesn't pay for delegate initialisation and allocation
+     *
+     * @return duration of the warm-up in nanoseconds
+     */
+    private static long warmUp(ModelPool<ObjectDetector> models) {
+        long start = System.nanoTime();
+        Bitmap frame = createSampleFrame(models.model);
+
+        for (ObjectDetector detector : models.getInstances()) {
+            detector.detect(TensorImage.fromBitmap(frame));
+        }
+        frame.recycle();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Frames are scaled to the model's input width, assume a 16:9 video
+     */
+    private static Bitmap createSampleFrame(ModelRegistry.ModelInfo model) {
+        int width = model.inputShape[1];
+        return ThreadCalibration.createSampleFrame(width, width * 9 / 16);
+    }
+
+    /**
+     * @param minScore detections scoring lower are discarded
+     */
+    private static ObjectDetector createDetector(ModelRegistry.ModelInfo model, int numThreads,
+                                                 DelegateBenchmark.Delegate delegate, float minScore) {
         BaseOptions baseOptions;
-        if (modelFilename.equals(defaultModel)) {
-            baseOptions = BaseOptions.builder().setNumThreads(TF_THREAD_NUM).useNnapi().build();
+        if (delegate == DelegateBenchmark.Delegate.NNAPI) {
+            baseOptions = BaseOptions.builder().setNumThreads(numThreads).useNnapi().build();
         } else {
-            baseOptions = BaseOptions.builder().setNumThreads(TF_THREAD_NUM).build();
+            baseOptions = BaseOptions.builder().setNumThreads(numThreads).build();
         }
 
         ObjectDetector.ObjectDetectorOptions objectDetectorOptions = ObjectDetector.ObjectDetectorOptions.builder()
                 .setBaseOptions(baseOptions)
                 .setMaxResults(MAX_DETECTIONS)
-                .setScoreThreshold(MIN_SCORE)
+                .setScoreThreshold(minScore)
                 .build();
 
-        try (Interpreter interpreter = new Interpreter(FileUtil.loadMappedFile(context, modelFilename))) {
-            inputSize = interpreter.getInputTensor(0).shape()[1];
+        return ObjectDetector.createFromBufferAndOptions(model.buffer, objectDetectorOptions);
+    }
+
+    /**
+     * @return delegate used before the model has been benchmarked, NNAPI was only ever enabled for the default model
+     */
+    private static DelegateBenchmark.Delegate getDefaultDelegate(Context context, String modelFilename) {
+        return modelFilename.equals(context.getString(R.string.default_object_model_key)) ?
+                DelegateBenchmark.Delegate.NNAPI : DelegateBenchmark.Delegate.CPU;
+    }
+
+    static String getModelFilename(Context context) {
+        String defaultModel = context.getString(R.string.default_object_model_key);
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
+        return pref.getString(context.getString(R.string.object_model_key), defaultModel);
+    }
+
+    /**
+     * @param minScore score threshold of the detector, 0 to output the maximum number of detections on any frame
+     * @param frames   run in turn, owned by the caller
+     * @return sample model whose output is the score and normalised bounding box of each detection, by score
+     */
+    private static SampleModel createSampleModel(Context context, String modelFilename, int numThreads,
+                                                 DelegateBenchmark.Delegate delegate, float minScore,
+                                                 List<Bitmap> frames) throws IOException {
+        ModelRegistry.ModelInfo model = ModelRegistry.get(context, modelFilename);
+        ObjectDetector detector = createDetector(model, numThreads, delegate, minScore);
+
+        return new SampleModel() {
+            private int next = 0;
+
+            @Override
+            public float[] run() {
+                Bitmap frame = frames.get(next++ % frames.size());
+                int frameWidth = frame.getWidth();
+                int frameHeight = frame.getHeight();
+                List<Detection> detections = new ArrayList<>(detector.detect(TensorImage.fromBitmap(frame)));
+                detections.removeIf(d -> d.getCategories() == null || d.getCategories().isEmpty());
+                detections.sort((a, b) -> Float.compare(
+                        b.getCategories().get(0).getScore(), a.getCategories().get(0).getScore()));
+
+                float[] output = new float[detections.size() * 5];
+                for (int i = 0; i < detections.size(); i++) {
+                    RectF box = detections.get(i).getBoundingBox();
+                    output[i * 5] = detections.get(i).getCategories().get(0).getScore();
+                    output[i * 5 + 1] = box.left / frameWidth;
+                    output[i * 5 + 2] = box.top / frameHeight;
+                    output[i * 5 + 3] = box.right / frameWidth;
+                    output[i * 5 + 4] = box.bottom / frameHeight;
+                }
+                return output;
+            }
+
+            @Override
+            public void close() {
+                detector.close();
+            }
+        };
+    }
+
+    /**
+     * Runs the current object detection model on a sample clip of the outer camera, for {@link ThreadCalibration}
+     */
+    static ThreadCalibration.Config calibrateThreads(Context context) {
+        String modelFilename = getModelFilename(context);
+        DelegateBenchmark.Delegate delegate = DelegateBenchmark.get(context, modelFilename,
+                getDefaultDelegate(context, modelFilename));
+        int width;
+
+        try {
+            width = ModelRegistry.get(context, modelFilename).inputShape[1];
         } catch (IOException e) {
-            Log.w(I_TAG, String.format("Model failure:\n  %s", e.getMessage()));
+            Log.w(I_TAG, String.format("Cannot calibrate %s:\n  %s", modelFilename, e.getMessage()));
+            return ThreadCalibration.get(context, modelFilename);
         }
 
-        for (int i = 0; i < THREAD_NUM; i++) {
-            try {
-                detectorQueue.add(ObjectDetector.createFromFileAndOptions(
-                        context, modelFilename, objectDetectorOptions));
-            } catch (IOException e) {
-                Log.w(I_TAG, String.format("Model failure:\n  %s", e.getMessage()));
-            }
+        return ThreadCalibration.calibrate(context, modelFilename, false, width, width * 9 / 16,
+                (numThreads, clip) -> createSampleModel(context, modelFilename, numThreads, delegate, MIN_SCORE,
+                        clip));
+    }
+
+    /**
+     * Benchmarks the current object detection model.
+     * The task library only exposes NNAPI, its CPU path already uses TFLite's default XNNPACK kernels.
+     * The synthetic sample frame scores below the analysis threshold, so the detectors are built without a threshold
+     * and output their top candidates, whose scores and boxes are compared. A missed or extra candidate always
+     * exceeds the tolerance, as the outputs differ in length.
+     */
+    static DelegateBenchmark.Delegate benchmarkDelegates(Context context) {
+        String modelFilename = getModelFilename(context);
+        int numThreads = ThreadCalibration.get(context, modelFilename).interpreterThreads;
+
+        DelegateBenchmark.Delegate defaultDelegate = getDefaultDelegate(context, modelFilename);
+        List<Bitmap> frames;
+
+        try {
+            frames = Collections.singletonList(createSampleFrame(ModelRegistry.get(context, modelFilename)));
+        } catch (IOException e) {
+            Log.w(I_TAG, String.format("Cannot benchmark %s:\n  %s", modelFilename, e.getMessage()));
+            return DelegateBenchmark.get(context, modelFilename, defaultDelegate);
+        }
+
+        try {
+            return DelegateBenchmark.benchmark(context, modelFilename,
+                    Arrays.asList(DelegateBenchmark.Delegate.CPU, DelegateBenchmark.Delegate.NNAPI),
+                    defaultDelegate, DELEGATE_TOLERANCE,
+                    delegate -> createSampleModel(context, modelFilename, numThreads, delegate, 0, frames));
+        } finally {
+            frames.get(0).recycle();
         }
     }
 
-    OuterFrame processFrame(Bitmap bitmap, int frameIndex, float scaleFactor) {
+    OuterFrame processFrame(Bitmap bitmap, int frameIndex, AnalysisContext job) {
+        CancellationToken token = job.token;
+        PipelineStats stats = job.stats;
+        float scaleFactor = job.scaleFactor;
+        long stageStart = System.nanoTime();
+        ModelPool<ObjectDetector> models;
         ObjectDetector detector;
 
         try {
-            detector = detectorQueue.poll(200, TimeUnit.MILLISECONDS);
+            // Waits until a detector is free instead of dropping the frame, as concurrent videos share the pool.
+            // Polls so that it moves on to the new pool if the model is swapped while waiting.
+            do {
+                models = pool;
+                if (models == null) {
+                    Log.w(I_TAG, String.format("No object detection model loaded for frame %s", frameIndex));
+                    return null;
+                }
+                detector = models.acquire(200, TimeUnit.MILLISECONDS);
+            } while (detector == null && (models.isRetired() || !token.shouldStop()));
         } catch (InterruptedException e) {
             Log.w(I_TAG, String.format("Cannot acquire detector for frame %s:\n  %s", frameIndex, e.getMessage()));
             return null;
@@ -109,12 +337,33 @@ public class OuterAnalysis extends VideoAnalysis {
             return null;
         }
 
-        List<Detection> detectionList = detector.detect(TensorImage.fromBitmap(bitmap));
+        stageStart = stats.record(PipelineStats.Stage.MODEL_WAIT, stageStart);
+        List<Detection> detectionList;
+        Rect region = roi ? getRoi(bitmap.getWidth(), bitmap.getHeight()) :
+                new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
 
         try {
-            detectorQueue.put(detector);
-        } catch (InterruptedException e) {
-            Log.w(TAG, String.format("Unable to return detector to queue:\n  %s", e.getMessage()));
+            if (token.shouldStop()) {
+                return null;
+            }
+            // The task library resizes to the model's input itself, natively, so the bitmap is passed as is
+            Bitmap detected = roi ? crop(bitmap, region) : bitmap;
+            TensorImage image = TensorImage.fromBitmap(detected);
+            stageStart = stats.record(PipelineStats.Stage.PREPROCESS, stageStart);
+
+            try {
+                if (token.shouldStop()) {
+                    return null;
+                }
+                detectionList = detector.detect(image);
+                stageStart = stats.record(PipelineStats.Stage.INFERENCE, stageStart);
+            } finally {
+                if (detected != bitmap) {
+                    BitmapPool.getInstance().release(detected);
+                }
+            }
+        } finally {
+            models.release(detector);
         }
 
         List<Hazard> hazards = new ArrayList<>(detectionList.size());
@@ -127,12 +376,13 @@ public class OuterAnalysis extends VideoAnalysis {
             }
             Category category = categoryList.get(0);
 
+            // Boxes are relative to the region that was detected on
             RectF detBox = detection.getBoundingBox();
             Rect boundingBox = new Rect(
-                    (int) (detBox.left * scaleFactor),
-                    (int) (detBox.top * scaleFactor),
-                    (int) (detBox.right * scaleFactor),
-                    (int) (detBox.bottom * scaleFactor)
+                    (int) ((detBox.left + region.left) * scaleFactor),
+                    (int) ((detBox.top + region.top) * scaleFactor),
+                    (int) ((detBox.right + region.left) * scaleFactor),
+                    (int) ((detBox.bottom + region.top) * scaleFactor)
             );
 
             int origWidth = (int) (bitmap.getWidth() * scaleFactor);
@@ -145,6 +395,7 @@ public class OuterAnalysis extends VideoAnalysis {
                     boundingBox
             ));
         }
+        stats.record(PipelineStats.Stage.POSTPROCESS, stageStart);
 
         if (verbose) {
             String resultHead = String.format(
@@ -164,10 +415,11 @@ public class OuterAnalysis extends VideoAnalysis {
             Log.v(TAG, resultMessage);
         }
 
-        return new OuterFrame(frameIndex, hazards);
+        return new OuterFrame(frameIndex, hazards,
+                (int) (bitmap.getWidth() * scaleFactor), (int) (bitmap.getHeight() * scaleFactor));
     }
 
-    private boolean isDanger(Rect boundingBox, String category, int imageWidth, int imageHeight) {
+    static boolean isDanger(Rect boundingBox, String category, int imageWidth, int imageHeight) {
         if (vehicleCategories.contains(category)) {
             // Check tailgating
             Rect tailgateZone = getTailgateZone(imageWidth, imageHeight);
@@ -179,7 +431,7 @@ public class OuterAnalysis extends VideoAnalysis {
         }
     }
 
-    private Rect getDangerZone(int imageWidth, int imageHeight) {
+    private static Rect getDangerZone(int imageWidth, int imageHeight) {
         int dangerLeft = imageWidth / 4;
         int dangerRight = (imageWidth / 4) * 3;
         int dangerTop = (imageHeight / 10) * 4;
@@ -187,7 +439,7 @@ public class OuterAnalysis extends VideoAnalysis {
         return new Rect(dangerLeft, dangerTop, dangerRight, imageHeight);
     }
 
-    private Rect getTailgateZone(int imageWidth, int imageHeight) {
+    private static Rect getTailgateZone(int imageWidth, int imageHeight) {
         int tailLeft = imageWidth / 3;
         int tailRight = (imageWidth / 3) * 2;
         int tailTop = (imageHeight / 4) * 3;
@@ -198,12 +450,49 @@ public class OuterAnalysis extends VideoAnalysis {
         return new Rect(tailLeft, tailTop, tailRight, tailBottom);
     }
 
-    void setup(int width, int height) {
-        // Doesn't need setup
+    /**
+     * Objects outside the region can't intersect either zone, so aren't hazards.
+     * Objects crossing the edge of the region are detected from their visible part, so their boxes are clipped to it.
+     *
+     * @return union of the danger and tailgate zones with a margin, within the frame
+     */
+    /**
+     * Copies a region of a frame into a pooled bitmap, which is released to the pool once detection is done with it
+     */
+    private static Bitmap crop(Bitmap bitmap, Rect region) {
+        Bitmap cropped = BitmapPool.getInstance().acquire(region.width(), region.height(), bitmap.getConfig());
+        new Canvas(cropped).drawBitmap(bitmap, region, new Rect(0, 0, region.width(), region.height()), null);
+        return cropped;
     }
 
+    private Rect getRoi(int imageWidth, int imageHeight) {
+        Rect region = getDangerZone(imageWidth, imageHeight);
+        region.union(getTailgateZone(imageWidth, imageHeight));
+
+        int marginX = (int) (imageWidth * ROI_MARGIN);
+        int marginY = (int) (imageHeight * ROI_MARGIN);
+        region.inset(-marginX, -marginY);
+
+        if (!region.intersect(0, 0, imageWidth, imageHeight)) {
+            return new Rect(0, 0, imageWidth, imageHeight);
+        }
+        return region;
+    }
+
+    ThreadCalibration.Config getThreadConfig() {
+        ModelPool<ObjectDetector> models = pool;
+        return models != null ? models.threads : ThreadCalibration.getDefault();
+    }
+
+    /**
+     * Scales frames so that the detected region, i.e. the whole frame or the region of interest, has the model's input
+     * width. The region of interest then keeps more detail for small objects.
+     */
     float getScaleFactor(int width) {
-        return width / (float) inputSize;
+        // The width of the region doesn't depend on the frame height
+        int detectWidth = roi ? getRoi(width, width).width() : width;
+        ModelPool<ObjectDetector> models = pool;
+        return models != null ? detectWidth / (float) models.model.inputShape[1] : 1;
     }
 
     public void printParameters() {
@@ -211,8 +500,18 @@ public class OuterAnalysis extends VideoAnalysis {
         paramMessage.add("Outer analysis parameters:");
         paramMessage.add(String.format("MAX_DETECTIONS: %s", MAX_DETECTIONS));
         paramMessage.add(String.format("MIN_SCORE: %s", MIN_SCORE));
-        paramMessage.add(String.format("TensorFlow Threads: %s", TF_THREAD_NUM));
-        paramMessage.add(String.format("Analysis Threads: %s", THREAD_NUM));
+        paramMessage.add(String.format("Region of interest: %s", roi));
+        ModelPool<ObjectDetector> models = pool;
+
+        if (models == null) {
+            paramMessage.add("Model: not loaded");
+            Log.i(I_TAG, paramMessage.toString());
+            return;
+        }
+        paramMessage.add(String.format("Model: %s", models.model.filename));
+        paramMessage.add(String.format("TensorFlow Threads: %s", models.threads.interpreterThreads));
+        paramMessage.add(String.format("Analysis Threads: %s", models.threads.analysisThreads));
+        paramMessage.add(String.format("Delegate: %s", models.delegate));
 
         Log.i(I_TAG, paramMessage.toString());
     }
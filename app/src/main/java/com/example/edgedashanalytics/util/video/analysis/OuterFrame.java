@@ -1,17 +1,54 @@
 package com.example.edgedashanalytics.util.video.analysis;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.List;
 
 @SuppressWarnings({"FieldCanBeLocal", "unused"})
 public class OuterFrame extends Frame {
-    private final List<Hazard> hazards;
+    final List<Hazard> hazards;
+    // Size of the original frame, used to re-evaluate the danger of tracked hazards, 0 if read from results
+    @JsonIgnore
+    private final int frameWidth;
+    @JsonIgnore
+    private final int frameHeight;
 
     @JsonCreator
     OuterFrame(@JsonProperty("frame") int frame, @JsonProperty("hazards") List<Hazard> hazards) {
+        this(frame, hazards, 0, 0);
+    }
+
+    OuterFrame(int frame, List<Hazard> hazards, int frameWidth, int frameHeight) {
         this.frame = frame;
         this.hazards = hazards;
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+    }
+
+    @Override
+    OuterFrame carry(int frameIndex) {
+        OuterFrame copy = new OuterFrame(frameIndex, hazards, frameWidth, frameHeight);
+        copy.carried = true;
+        return copy;
+    }
+
+    @Override
+    OuterFrame predict(Frame previous, int frameIndex) {
+        List<Hazard> previousHazards = previous instanceof OuterFrame ? ((OuterFrame) previous).hazards : null;
+        int gap = previous == null ? 0 : frame - previous.frame;
+
+        OuterFrame copy = new OuterFrame(frameIndex,
+                HazardTracker.predict(previousHazards, hazards, gap, frameIndex - frame, frameWidth, frameHeight),
+                frameWidth, frameHeight);
+        copy.tracked = true;
+        return copy;
+    }
+
+    @Override
+    boolean isLowConfidence(Frame previous) {
+        return previous instanceof OuterFrame &&
+                HazardTracker.isLowConfidence(((OuterFrame) previous).hazards, hazards);
     }
 }
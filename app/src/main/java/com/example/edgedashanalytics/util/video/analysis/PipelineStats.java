@@ -0,0 +1,86 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Per-stage latency histograms of the analysis pipeline, recorded per video and in aggregate across all videos
+ */
+class PipelineStats {
+    enum Stage {
+        DECODE, // Decoding and colour conversion, or retrieval, of a frame
+        SCALE, // Scaling a frame to the model's resolution
+        ENQUEUE, // Waiting for space in the frame queue
+        MODEL_WAIT, // Waiting for a pooled interpreter or detector
+        PREPROCESS, // Cropping, resizing and writing model input
+        INFERENCE,
+        POSTPROCESS, // Converting model output into keypoints or hazards
+        WRITE // Reordering and serialising results
+    }
+
+    private static final PipelineStats aggregate = new PipelineStats(null);
+
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    private final PipelineStats parent;
+
+    private PipelineStats(PipelineStats parent) {
+        this.parent = parent;
+
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * @return stats for a single video, also recorded into the aggregate
+     */
+    static PipelineStats forVideo() {
+        return new PipelineStats(aggregate);
+    }
+
+    static PipelineStats getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * @param startNanos value of System.nanoTime() when the stage started
+     * @return current System.nanoTime(), so that the next stage can start where this one ended
+     */
+    long record(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        recordDuration(stage, now - startNanos);
+        return now;
+    }
+
+    private void recordDuration(Stage stage, long nanos) {
+        //noinspection ConstantConditions
+        histograms.get(stage).record(nanos);
+
+        if (parent != null) {
+            parent.recordDuration(stage, nanos);
+        }
+    }
+
+    /**
+     * @return number of times the stage has been recorded
+     */
+    long getCount(Stage stage) {
+        //noinspection ConstantConditions
+        return histograms.get(stage).getCount();
+    }
+
+    String getSummary(String name) {
+        StringJoiner message = new StringJoiner("\n  ");
+        message.add(String.format("Pipeline latency of %s:", name));
+
+        for (Map.Entry<Stage, LatencyHistogram> entry : histograms.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                String stage = entry.getKey().name().toLowerCase(Locale.ENGLISH);
+                message.add(String.format("%s: %s", stage, entry.getValue().getSummary()));
+            }
+        }
+        return message.toString();
+    }
+}
@@ -0,0 +1,362 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import static com.example.edgedashanalytics.page.main.MainActivity.I_TAG;
+
+import android.util.Log;
+
+import com.example.edgedashanalytics.util.file.JsonManager;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Streams frame results to a JSON array in frame order while analysis is running.
+ * Every frame index is resolved exactly once, as analysed, skipped, carried forward or tracked. Frames that resolve
+ * out of order are held in a reorder buffer until all earlier frames have resolved, so the buffer only holds frames
+ * that are still being analysed. Frames that never resolved, e.g. after an early stop, are left out on close.
+ * Carried and tracked frames are resolved from the analysed frames written before them.
+ * Progress is checkpointed periodically, if a checkpoint for the same video exists when the writer is created, its
+ * results are restored and analysis can resume from {@link #getStartIndex()}.
+ * <p>
+ * When frames resolve in no particular order, e.g. in coverage order, the reorder buffer would end up holding most of
+ * the video. Analysed results are then appended to a spill file as they resolve instead, with only their offsets kept
+ * in memory, and are copied to the results file in frame order on close. Such analyses are not checkpointed, as the
+ * resolved frames are rarely contiguous, and can't be carried or tracked.
+ */
+class ResultWriter implements AutoCloseable {
+    private static final String TAG = ResultWriter.class.getSimpleName();
+    private static final int CHECKPOINT_FRAMES = 30;
+    private static final long CHECKPOINT_MS = 2000;
+
+    private enum Type {
+        ANALYSED,
+        SKIPPED,
+        CARRIED, // Reuses the result of the reference frame, see MotionGate
+        TRACKED // Predicted from the latest analysed frames, see TrackingSchedule
+    }
+
+    private static class Entry {
+        final Type type;
+        final Frame frame;
+        final int reference;
+
+        Entry(Type type, Frame frame, int reference) {
+            this.type = type;
+            this.frame = frame;
+            this.reference = reference;
+        }
+    }
+
+    private final String path;
+    private final String videoName;
+    private final int totalFrames;
+    private final JsonGenerator generator;
+    private final int maxTrackGap;
+    private final int startIndex;
+    private final TreeMap<Integer, Entry> pending = new TreeMap<>();
+    private final boolean unordered;
+    private File spillFile = null;
+    private RandomAccessFile spill = null;
+    // Offset of each frame's result in the spill file, -1 if it has no result
+    private long[] spillOffsets = null;
+    private int[] spillLengths = null;
+
+    private int nextIndex = 0;
+    private int checkpointIndex = 0;
+    private long checkpointTime = System.currentTimeMillis();
+    private Frame lastAnalysed = null;
+    private Frame previousAnalysed = null;
+    private boolean closed = false;
+
+    private int writtenCount = 0;
+    private int analysedCount = 0;
+    private int carriedCount = 0;
+    private int trackedCount = 0;
+    private int maxBuffered = 0;
+
+    /**
+     * @param maxTrackGap maximum distance in frames that results are tracked over
+     * @param unordered   whether frames resolve in no particular order, see CoverageOrder
+     */
+    ResultWriter(String path, String videoName, int totalFrames, int maxTrackGap, boolean unordered)
+            throws IOException {
+        this.path = path;
+        this.videoName = videoName;
+        this.totalFrames = totalFrames;
+        this.maxTrackGap = maxTrackGap;
+        this.unordered = unordered;
+
+        if (unordered) {
+            // Cache directory, so that it isn't listed with the results
+            spillFile = File.createTempFile(FilenameUtils.getBaseName(path), ".frames");
+            spill = new RandomAccessFile(spillFile, "rw");
+            spillOffsets = new long[totalFrames];
+            spillLengths = new int[totalFrames];
+            Arrays.fill(spillOffsets, -1);
+        }
+
+        // Restored frames have to be read before the results file is overwritten
+        Checkpoint checkpoint = unordered ? null : Checkpoint.read(path);
+        List<Frame> restored = checkpoint != null && checkpoint.matches(videoName, totalFrames) ?
+                JsonManager.readPartialFrames(path) : Collections.emptyList();
+
+        this.generator = JsonManager.createGenerator(path);
+        generator.writeStartArray();
+
+        if (checkpoint != null && !restored.isEmpty()) {
+            for (Frame frame : restored) {
+                if (frame.frame < checkpoint.nextIndex) {
+                    restore(frame);
+                }
+            }
+            nextIndex = checkpoint.nextIndex;
+            checkpointIndex = nextIndex;
+            Log.i(I_TAG, String.format("Resuming analysis of %s from frame %s, %s results restored",
+                    videoName, nextIndex, writtenCount));
+        }
+        this.startIndex = nextIndex;
+        generator.flush();
+    }
+
+    /**
+     * @return first frame that still needs to be analysed, frames before it were restored from a checkpoint
+     */
+    int getStartIndex() {
+        return startIndex;
+    }
+
+    /**
+     * @param frame result of the frame, null if analysis failed or was stopped
+     */
+    synchronized void complete(int frameIndex, Frame frame) {
+        resolve(frameIndex, new Entry(frame == null ? Type.SKIPPED : Type.ANALYSED, frame, -1));
+    }
+
+    synchronized void skip(int frameIndex) {
+        resolve(frameIndex, new Entry(Type.SKIPPED, null, -1));
+    }
+
+    synchronized void carry(int frameIndex, int referenceIndex) {
+        resolve(frameIndex, new Entry(Type.CARRIED, null, referenceIndex));
+    }
+
+    synchronized void track(int frameIndex) {
+        resolve(frameIndex, new Entry(Type.TRACKED, null, -1));
+    }
+
+    private void resolve(int frameIndex, Entry entry) {
+        if (closed || frameIndex < nextIndex) {
+            return;
+        }
+        if (unordered) {
+            spill(frameIndex, entry);
+            return;
+        }
+        pending.put(frameIndex, entry);
+        maxBuffered = Math.max(maxBuffered, pending.size());
+
+        if (frameIndex != nextIndex) {
+            return;
+        }
+
+        Entry next;
+        while ((next = pending.remove(nextIndex)) != null) {
+            write(nextIndex, next);
+            nextIndex++;
+        }
+        flush();
+
+        long now = System.currentTimeMillis();
+        if (nextIndex - checkpointIndex >= CHECKPOINT_FRAMES || now - checkpointTime >= CHECKPOINT_MS) {
+            // Written after flushing, so every frame before nextIndex is already in the results file
+            new Checkpoint(videoName, totalFrames, nextIndex).write(path);
+            checkpointIndex = nextIndex;
+            checkpointTime = now;
+        }
+    }
+
+    /**
+     * Appends an analysed result to the spill file, other frames have no result without their neighbours
+     */
+    private void spill(int frameIndex, Entry entry) {
+        if (entry.type != Type.ANALYSED || frameIndex >= totalFrames || spillOffsets[frameIndex] >= 0) {
+            return;
+        }
+        String json = JsonManager.writeToString(entry.frame);
+
+        if (json == null) {
+            Log.e(I_TAG, String.format("Failed to write result of frame %s", frameIndex));
+            return;
+        }
+
+        try {
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            spillOffsets[frameIndex] = spill.getFilePointer();
+            spillLengths[frameIndex] = bytes.length;
+            spill.write(bytes);
+            analysedCount++;
+            writtenCount++;
+        } catch (IOException e) {
+            spillOffsets[frameIndex] = -1;
+            Log.e(I_TAG, String.format("Failed to write result of frame %s: %s\n  %s",
+                    frameIndex, e.getClass().getSimpleName(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Copies spilled results to the results file in frame order
+     */
+    private void writeSpilled() {
+        try {
+            for (int i = 0; i < totalFrames; i++) {
+                if (spillOffsets[i] < 0) {
+                    continue;
+                }
+                byte[] bytes = new byte[spillLengths[i]];
+                spill.seek(spillOffsets[i]);
+                spill.readFully(bytes);
+                generator.writeRawValue(new String(bytes, StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            Log.e(I_TAG, String.format("Failed to copy spilled results: %s\n  %s",
+                    e.getClass().getSimpleName(), e.getMessage()));
+        }
+
+        try {
+            spill.close();
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Failed to close spill file:\n  %s", e.getMessage()));
+        }
+        if (!spillFile.delete()) {
+            Log.w(TAG, String.format("Could not delete spill file %s", spillFile.getName()));
+        }
+    }
+
+    /**
+     * Writes a result restored from a checkpoint as is, analysed results can still be tracked from
+     */
+    private void restore(Frame frame) {
+        if (!frame.carried && !frame.tracked) {
+            previousAnalysed = lastAnalysed;
+            lastAnalysed = frame;
+        }
+        writeFrame(frame.frame, frame);
+    }
+
+    private void write(int frameIndex, Entry entry) {
+        Frame frame = null;
+
+        switch (entry.type) {
+            case ANALYSED:
+                frame = entry.frame;
+                previousAnalysed = lastAnalysed;
+                lastAnalysed = frame;
+                analysedCount++;
+                break;
+            case CARRIED:
+                // The reference frame's result is only written before this frame if it succeeded
+                if (lastAnalysed != null && lastAnalysed.frame == entry.reference) {
+                    frame = lastAnalysed.carry(frameIndex);
+                    carriedCount++;
+                }
+                break;
+            case TRACKED:
+                if (lastAnalysed != null && frameIndex - lastAnalysed.frame <= maxTrackGap) {
+                    Frame previous = previousAnalysed != null &&
+                            lastAnalysed.frame - previousAnalysed.frame <= maxTrackGap ? previousAnalysed : null;
+                    frame = lastAnalysed.predict(previous, frameIndex);
+                    trackedCount++;
+                }
+                break;
+            case SKIPPED:
+                break;
+        }
+
+        if (frame != null) {
+            writeFrame(frameIndex, frame);
+        }
+    }
+
+    private void writeFrame(int frameIndex, Frame frame) {
+        try {
+            generator.writeObject(frame);
+            writtenCount++;
+        } catch (IOException e) {
+            Log.e(I_TAG, String.format("Failed to write result of frame %s: %s\n  %s",
+                    frameIndex, e.getClass().getSimpleName(), e.getMessage()));
+        }
+    }
+
+    private void flush() {
+        try {
+            generator.flush();
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Failed to flush results file:\n  %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Writes any buffered frames, skipping frames that never resolved, and closes the array.
+     * Frames that resolve after closing are ignored.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (unordered) {
+            writeSpilled();
+        }
+        for (Map.Entry<Integer, Entry> entry : pending.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+        pending.clear();
+
+        try {
+            generator.writeEndArray();
+            generator.close();
+        } catch (IOException e) {
+            Log.e(I_TAG, String.format("Failed to write results file: %s\n  %s",
+                    e.getClass().getSimpleName(), e.getMessage()));
+        }
+        // Analysis has finished, even if it stopped early, so there is nothing to resume
+        Checkpoint.delete(path);
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    synchronized int getWrittenCount() {
+        return writtenCount;
+    }
+
+    synchronized int getAnalysedCount() {
+        return analysedCount;
+    }
+
+    synchronized int getCarriedCount() {
+        return carriedCount;
+    }
+
+    synchronized int getTrackedCount() {
+        return trackedCount;
+    }
+
+    synchronized String getSummary() {
+        return String.format("written: %s, analysed: %s, carried: %s, tracked: %s, max buffered: %s",
+                writtenCount, analysedCount, carriedCount, trackedCount, maxBuffered);
+    }
+}
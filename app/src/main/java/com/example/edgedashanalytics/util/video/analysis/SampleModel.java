@@ -0,0 +1,15 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+/**
+ * Model instance with its own interpreter, running inference on fixed sample frames in turn.
+ * Used to measure models on the current device, see {@link ThreadCalibration} and {@link DelegateBenchmark}.
+ */
+interface SampleModel extends AutoCloseable {
+    /**
+     * @return model output, only valid until the next run
+     */
+    float[] run();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,289 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import static com.example.edgedashanalytics.page.main.MainActivity.I_TAG;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import com.example.edgedashanalytics.util.file.FileManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.StringJoiner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds the number of analysis threads, and interpreter threads per analysis thread, with the highest inference
+ * throughput on this device, and stores it per model.
+ * Each configuration in a small grid bounded by the number of cores runs the model concurrently on a sample clip.
+ */
+class ThreadCalibration {
+    private static final String TAG = ThreadCalibration.class.getSimpleName();
+    private static final String PREF_PREFIX = "thread_config_";
+
+    private static final int[] ANALYSIS_THREADS = {1, 2, 3, 4};
+    private static final int[] INTERPRETER_THREADS = {1, 2, 4};
+    private static final int WARMUP_RUNS = 2;
+    private static final long RUN_MS = 1500;
+    // Frames of the sample clip, one every CLIP_INTERVAL_MS from the start of a recorded video
+    private static final int CLIP_FRAMES = 8;
+    private static final long CLIP_INTERVAL_MS = 250;
+
+    static class Config {
+        final int analysisThreads;
+        final int interpreterThreads;
+
+        Config(int analysisThreads, int interpreterThreads) {
+            this.analysisThreads = analysisThreads;
+            this.interpreterThreads = interpreterThreads;
+        }
+
+        int getTotalThreads() {
+            return analysisThreads * interpreterThreads;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s analysis x %s interpreter threads", analysisThreads, interpreterThreads);
+        }
+    }
+
+    interface ModelFactory {
+        /**
+         * @param clip frames to run in turn, owned by the calibration
+         */
+        SampleModel create(int interpreterThreads, List<Bitmap> clip) throws Exception;
+    }
+
+    private static int getCoreCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return configuration used before calibration has run, two analysis threads sharing the cores
+     */
+    static Config getDefault() {
+        int analysisThreads = Math.min(2, getCoreCount());
+        return new Config(analysisThreads, Math.max(1, Math.min(4, getCoreCount() / analysisThreads)));
+    }
+
+    /**
+     * Configurations are only valid for the device they were measured on, preferences may be restored from a backup
+     * of another device, see {@link DelegateBenchmark}
+     */
+    private static String getKey(String modelFilename) {
+        return String.format("%s%s_%s_%s", PREF_PREFIX, modelFilename, Build.MODEL, Build.VERSION.SDK_INT);
+    }
+
+    static boolean isCalibrated(Context context, String modelFilename) {
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
+        return pref.contains(getKey(modelFilename));
+    }
+
+    /**
+     * @return calibrated configuration of the model, or a default based on the number of cores if not calibrated
+     */
+    static Config get(Context context, String modelFilename) {
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
+        String value = pref.getString(getKey(modelFilename), null);
+
+        if (value != null) {
+            String[] parts = value.split(",");
+            try {
+                return new Config(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                Log.w(TAG, String.format("Invalid thread configuration of %s: %s", modelFilename, value));
+            }
+        }
+        return getDefault();
+    }
+
+    /**
+     * Measures every configuration that doesn't use more threads than there are cores and stores the fastest.
+     * Takes several seconds and uses every core, so it should not run alongside analysis.
+     *
+     * @param inner  whether the model analyses videos of the inner or outer camera, whose clip it runs on
+     * @param width  maximum width of the clip's frames, i.e. the width that frames are scaled to for analysis
+     * @param height maximum height of the clip's frames
+     * @return the fastest configuration, or the current configuration if no configuration could be measured
+     */
+    static Config calibrate(Context context, String modelFilename, boolean inner, int width, int height,
+                            ModelFactory factory) {
+        List<Bitmap> clip = loadSampleClip(inner, width, height);
+        try {
+            return calibrate(context, modelFilename, clip, factory);
+        } finally {
+            for (Bitmap frame : clip) {
+                frame.recycle();
+            }
+        }
+    }
+
+    private static Config calibrate(Context context, String modelFilename, List<Bitmap> clip, ModelFactory factory) {
+        int cores = getCoreCount();
+        Config best = null;
+        double bestThroughput = 0;
+
+        StringJoiner message = new StringJoiner("\n  ");
+        message.add(String.format("Thread calibration of %s on %s cores:", modelFilename, cores));
+
+        for (int analysisThreads : ANALYSIS_THREADS) {
+            for (int interpreterThreads : INTERPRETER_THREADS) {
+                if (analysisThreads * interpreterThreads > cores) {
+                    continue;
+                }
+                Config config = new Config(analysisThreads, interpreterThreads);
+                double throughput;
+
+                try {
+                    throughput = measure(factory, config, clip);
+                } catch (InterruptedException e) {
+                    Log.w(I_TAG, String.format("Interrupted thread calibration of %s", modelFilename));
+                    Thread.currentThread().interrupt();
+                    return get(context, modelFilename);
+                } catch (Exception e) {
+                    Log.w(I_TAG, String.format("Could not measure %s: %s\n  %s",
+                            config, e.getClass().getSimpleName(), e.getMessage()));
+                    continue;
+                }
+                message.add(String.format(Locale.ENGLISH, "%s: %.2f fps", config, throughput));
+
+                if (throughput > bestThroughput) {
+                    best = config;
+                    bestThroughput = throughput;
+                }
+            }
+        }
+
+        if (best == null) {
+            Log.w(I_TAG, String.format("Thread calibration of %s failed", modelFilename));
+            return get(context, modelFilename);
+        }
+        message.add(String.format("Selected %s", best));
+        Log.i(I_TAG, message.toString());
+
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
+        pref.edit().putString(getKey(modelFilename),
+                String.format(Locale.ENGLISH, "%d,%d", best.analysisThreads, best.interpreterThreads)).apply();
+        return best;
+    }
+
+    /**
+     * @return frames per second over all analysis threads
+     */
+    private static double measure(ModelFactory factory, Config config, List<Bitmap> clip) throws Exception {
+        List<SampleModel> models = new ArrayList<>(config.analysisThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(config.analysisThreads);
+
+        try {
+            for (int i = 0; i < config.analysisThreads; i++) {
+                SampleModel model = factory.create(config.interpreterThreads, clip);
+                models.add(model);
+
+                for (int j = 0; j < WARMUP_RUNS; j++) {
+                    model.run();
+                }
+            }
+
+            AtomicLong runs = new AtomicLong(0);
+            long start = System.nanoTime();
+            long end = start + TimeUnit.MILLISECONDS.toNanos(RUN_MS);
+            List<Future<?>> futures = new ArrayList<>(models.size());
+
+            for (SampleModel model : models) {
+                futures.add(executor.submit(() -> {
+                    while (System.nanoTime() < end && !Thread.currentThread().isInterrupted()) {
+                        model.run();
+                        runs.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return runs.get() / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(RUN_MS, TimeUnit.MILLISECONDS);
+
+            for (SampleModel model : models) {
+                model.close();
+            }
+        }
+    }
+
+    /**
+     * Decodes a short clip from the start of a video recorded on this device, so that inference does the same work as
+     * on the camera's own frames. No sample video is shipped with the app, so a single synthetic frame is used until a
+     * video of the camera has been recorded.
+     *
+     * @param inner whether to sample a video of the inner or outer camera
+     * @return frames scaled to fit within the given size, to be recycled by the caller
+     */
+    private static List<Bitmap> loadSampleClip(boolean inner, int width, int height) {
+        File[] videos = new File(FileManager.getRawDirPath()).listFiles(file ->
+                inner ? FileManager.isInner(file.getName()) : FileManager.isOuter(file.getName()));
+        List<Bitmap> frames = new ArrayList<>(CLIP_FRAMES);
+
+        if (videos != null && videos.length > 0) {
+            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+
+            try {
+                retriever.setDataSource(videos[0].getAbsolutePath());
+
+                for (int i = 0; i < CLIP_FRAMES; i++) {
+                    Bitmap frame = retriever.getScaledFrameAtTime(TimeUnit.MILLISECONDS.toMicros(i * CLIP_INTERVAL_MS),
+                            MediaMetadataRetriever.OPTION_CLOSEST, width, height);
+                    if (frame != null) {
+                        frames.add(frame);
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, String.format("Could not sample %s: %s\n  %s",
+                        videos[0].getName(), e.getClass().getSimpleName(), e.getMessage()));
+            } finally {
+                try {
+                    retriever.release();
+                } catch (IOException e) {
+                    Log.w(TAG, String.format("Could not release retriever:\n  %s", e.getMessage()));
+                }
+            }
+        }
+
+        if (frames.isEmpty()) {
+            frames.add(createSampleFrame(width, height));
+        }
+        return frames;
+    }
+
+    /**
+     * @return frame with smooth gradients and edges, so that inference does comparable work to a real frame
+     */
+    static Bitmap createSampleFrame(int width, int height) {
+        int[] pixels = new int[width * height];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / Math.max(width - 1, 1);
+                int g = y * 255 / Math.max(height - 1, 1);
+                int b = ((x / 16) + (y / 16)) % 2 == 0 ? 32 : 224;
+                pixels[y * width + x] = Color.rgb(r, g, b);
+            }
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which frames are analysed when tracking is enabled: only every interval-th frame is analysed, frames in
+ * between are predicted from the most recent analysed frames by the {@link ResultWriter}.
+ * A frame is analysed early if a result could not be reliably associated with the result of the key frame before it.
+ * Results complete out of order on several analysis threads, so each result is compared with its neighbouring key
+ * frames by frame index once both have been analysed.
+ */
+class TrackingSchedule {
+    private final int interval;
+
+    private final AtomicBoolean redetect = new AtomicBoolean(false);
+    // Key frames that may still be compared, with their result, null while being analysed
+    private final TreeMap<Integer, Frame> keyFrames = new TreeMap<>();
+    private final AtomicInteger redetectCount = new AtomicInteger(0);
+
+    /**
+     * @param interval number of frames between analysed frames, tracking is disabled if <= 1
+     */
+    TrackingSchedule(int interval) {
+        this.interval = interval;
+    }
+
+    boolean isEnabled() {
+        return interval > 1;
+    }
+
+    /**
+     * Called by the decoding loop before a frame is converted
+     *
+     * @return true if the frame should be analysed
+     */
+    boolean isKeyFrame(int frameIndex) {
+        if (!isEnabled()) {
+            return true;
+        }
+        boolean key = frameIndex % interval == 0;
+
+        if (!key && redetect.getAndSet(false)) {
+            redetectCount.incrementAndGet();
+            key = true;
+        }
+        if (key) {
+            synchronized (keyFrames) {
+                keyFrames.put(frameIndex, null);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Called once a key frame has been analysed, or once it is known that it won't be
+     *
+     * @param frame result of the frame, null if it wasn't analysed, e.g. analysis failed or the frame was carried
+     */
+    void onResult(int frameIndex, Frame frame) {
+        if (!isEnabled()) {
+            return;
+        }
+        boolean lowConfidence;
+
+        synchronized (keyFrames) {
+            if (frame == null) {
+                // Its neighbours become adjacent key frames
+                keyFrames.remove(frameIndex);
+                Map.Entry<Integer, Frame> after = keyFrames.higherEntry(frameIndex);
+                lowConfidence = after != null && isLowConfidence(keyFrames.lowerEntry(frameIndex), after.getValue());
+            } else {
+                keyFrames.put(frameIndex, frame);
+                lowConfidence = isLowConfidence(keyFrames.lowerEntry(frameIndex), frame) ||
+                        isLowConfidence(keyFrames.floorEntry(frameIndex), keyFrames.higherEntry(frameIndex));
+            }
+
+            // The first key frame is only compared with the next one, it isn't needed once both have results
+            while (keyFrames.size() > 1 && keyFrames.firstEntry().getValue() != null &&
+                    keyFrames.higherEntry(keyFrames.firstKey()).getValue() != null) {
+                keyFrames.pollFirstEntry();
+            }
+        }
+
+        if (lowConfidence) {
+            redetect.set(true);
+        }
+    }
+
+    private static boolean isLowConfidence(Map.Entry<Integer, Frame> before, Map.Entry<Integer, Frame> after) {
+        return after != null && isLowConfidence(before, after.getValue());
+    }
+
+    /**
+     * @return true if both key frames have been analysed and the later result can't be tracked from the earlier one
+     */
+    private static boolean isLowConfidence(Map.Entry<Integer, Frame> before, Frame after) {
+        return before != null && before.getValue() != null && after != null && after.isLowConfidence(before.getValue());
+    }
+
+    /**
+     * @return maximum distance in frames that results are tracked over, beyond it tracked frames are left out
+     */
+    int getMaxGap() {
+        return Math.max(interval, 1) * 2;
+    }
+
+    int getRedetectCount() {
+        return redetectCount.get();
+    }
+}
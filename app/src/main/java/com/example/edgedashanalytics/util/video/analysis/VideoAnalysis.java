@@ -5,6 +5,8 @@ import static com.example.edgedashanalytics.page.main.MainActivity.I_TAG;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.media.MediaMetadataRetriever;
 import android.util.Log;
 
@@ -12,33 +14,36 @@ import androidx.preference.PreferenceManager;
 
 import com.example.edgedashanalytics.R;
 import com.example.edgedashanalytics.util.TimeManager;
-import com.example.edgedashanalytics.util.file.JsonManager;
+import com.example.edgedashanalytics.util.hardware.HardwareInfo;
 import com.example.edgedashanalytics.util.hardware.PowerMonitor;
 import com.example.edgedashanalytics.util.video.FfmpegTools;
 
 import java.io.File;
+import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
 
 public abstract class VideoAnalysis {
     private static final String TAG = VideoAnalysis.class.getSimpleName();
     private static final boolean DEFAULT_VERBOSE = false;
 
-    final static int TF_THREAD_NUM = 4;
-    final static int THREAD_NUM = 2;
-
     final boolean verbose;
+    private final Context appContext;
+    private final FrameExecutor.Policy queuePolicy;
+    private final boolean coverageOrder;
+    private final float motionThreshold;
+    private final int detectInterval;
 
-    private static double stopDivisor = 1.0;
-
-    private static Long timeout = null;
+    // Adjusted between videos, each job keeps the value it started with
+    private static volatile double stopDivisor = 1.0;
 
     /**
      * Set up default parameters
@@ -46,14 +51,51 @@ public abstract class VideoAnalysis {
     VideoAnalysis(Context context) {
         SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
         this.verbose = pref.getBoolean(context.getString(R.string.verbose_output_key), DEFAULT_VERBOSE);
+        this.appContext = context.getApplicationContext();
+        this.queuePolicy = pref.getBoolean(context.getString(R.string.drop_frames_key), false) ?
+                FrameExecutor.Policy.DROP : FrameExecutor.Policy.BLOCK;
+        this.coverageOrder = pref.getBoolean(context.getString(R.string.coverage_order_key), false);
+        this.motionThreshold = Float.parseFloat(pref.getString(context.getString(R.string.motion_threshold_key), "0"));
+        this.detectInterval = Integer.parseInt(pref.getString(context.getString(R.string.detect_interval_key), "1"));
         stopDivisor = Double.parseDouble(pref.getString(
                 context.getString(R.string.early_stop_divisor_key), String.valueOf(stopDivisor)));
     }
 
-    abstract Frame processFrame(Bitmap bitmap, int frameIndex, float scaleFactor);
+    /**
+     * Called concurrently for frames of different jobs, so must not keep per-video state outside of the job
+     *
+     * @param job its token is checked between analysis stages, returns null if analysis should stop
+     */
+    abstract Frame processFrame(Bitmap bitmap, int frameIndex, AnalysisContext job);
+
+    /**
+     * Starts loading and warming up the models in the background if they haven't been loaded yet
+     *
+     * @return completes once the models have been loaded, fails if no model could be loaded
+     */
+    abstract Future<?> preload(Context context);
+
+    /**
+     * @return true if a model pool has been loaded, once loaded a pool is only ever replaced
+     */
+    abstract boolean isLoaded();
+
+    /**
+     * @return thread configuration of the loaded models, see {@link ThreadCalibration}, the default configuration if
+     * no model has been loaded
+     */
+    abstract ThreadCalibration.Config getThreadConfig();
 
-    abstract void setup(int width, int height);
+    /**
+     * @return number of frames analysed concurrently
+     */
+    int getThreadCount() {
+        return getThreadConfig().analysisThreads;
+    }
 
+    /**
+     * @return factor that frames are scaled down by before analysis, 1 if no model has been loaded
+     */
     abstract float getScaleFactor(int width);
 
     public abstract void printParameters();
@@ -100,14 +142,44 @@ public abstract class VideoAnalysis {
         }
 
         Log.d(I_TAG, String.format("Changed ESD to %.4f", stopDivisor));
-        timeout = (long) (FfmpegTools.getDurationMillis() / stopDivisor);
     }
 
-    public void analyse(String inPath, String outPath) {
-        processVideo(inPath, outPath);
+    /**
+     * @param durationMillis duration of the video, or 0 if unknown
+     * @return time allowed for analysing the video
+     */
+    private static long getTimeout(long durationMillis, double divisor) {
+        if (divisor <= 0 || durationMillis <= 0) {
+            // Ten minutes in milliseconds
+            return 600000L;
+        }
+        return (long) (durationMillis / divisor);
+    }
+
+    public boolean analyse(String inPath, String outPath) {
+        return analyse(inPath, outPath, new CancellationToken());
+    }
+
+    /**
+     * @return true if results were written, possibly stopped early, false if analysis failed or was cancelled
+     */
+    public boolean analyse(String inPath, String outPath, CancellationToken token) {
+        return processVideo(inPath, outPath, token, 0);
     }
 
-    private void processVideo(String inPath, String outPath) {
+    /**
+     * @param analysisThreads maximum number of frames of this video analysed concurrently, limited to the calibrated
+     *                        number of analysis threads
+     */
+    boolean analyse(String inPath, String outPath, CancellationToken token, int analysisThreads) {
+        return processVideo(inPath, outPath, token, analysisThreads);
+    }
+
+    /**
+     * @param maxThreads maximum number of analysis threads, the calibrated number if 0
+     * @return true if results were written, false if analysis failed or was cancelled
+     */
+    private boolean processVideo(String inPath, String outPath, CancellationToken token, int maxThreads) {
         File videoFile = new File(inPath);
         String videoName = videoFile.getName();
         MediaMetadataRetriever retriever = new MediaMetadataRetriever();
@@ -117,66 +189,126 @@ public abstract class VideoAnalysis {
         } catch (Exception e) {
             Log.e(I_TAG, String.format("Failed to set data source for %s: %s\n  %s",
                     videoName, e.getClass().getSimpleName(), e.getMessage()));
-            return;
+            return false;
         }
 
         String totalFramesString = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_FRAME_COUNT);
 
         if (totalFramesString == null) {
             Log.e(TAG, String.format("Could not retrieve metadata from %s", videoName));
-            return;
+            return false;
         }
         int totalFrames = Integer.parseInt(totalFramesString);
+        int videoWidth = Integer.parseInt(
+                retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+        int videoHeight = Integer.parseInt(
+                retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+        String rotationString = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+
+        if (rotationString != null && Integer.parseInt(rotationString) % 180 != 0) {
+            // Frames are analysed in display orientation, so the dimensions of rotated videos are swapped
+            int codedWidth = videoWidth;
+            videoWidth = videoHeight;
+            videoHeight = codedWidth;
+        }
+        String durationString = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+        long durationMillis = durationString != null ? Long.parseLong(durationString) : 0;
+
+        try {
+            // Models are normally loaded and warmed up at startup, so only a video that arrives before then waits
+            long waitStart = System.nanoTime();
+            preload(appContext).get();
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart);
+
+            if (waitMillis > 0) {
+                Log.d(I_TAG, String.format("Waited %sms for models to load before analysing %s",
+                        waitMillis, videoName));
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            Log.e(I_TAG, String.format("Failed to load models for %s: %s\n  %s",
+                    videoName, e.getClass().getSimpleName(), e.getMessage()));
+            return false;
+        }
+
+        if (!isLoaded()) {
+            Log.e(I_TAG, String.format("Model failure, no model loaded for %s", videoName));
+            return false;
+        }
 
         Instant startTime = Instant.now();
         long startPower = PowerMonitor.getTotalPowerConsumption();
         String startString = String.format("Starting analysis of %s, %s frames", videoName, totalFrames);
         Log.d(I_TAG, startString);
 
-        final List<Frame> frames = Collections.synchronizedList(new ArrayList<>(totalFrames));
+        // Tracking and motion gating rely on consecutive frames, which coverage order doesn't analyse together
+        final TrackingSchedule tracking = new TrackingSchedule(coverageOrder ? 1 : detectInterval);
+        final double divisor = stopDivisor;
+        final AnalysisContext job = new AnalysisContext(inPath, outPath, totalFrames, videoWidth, videoHeight,
+                getScaleFactor(videoWidth), divisor, getTimeout(durationMillis, divisor), token);
+        final ResultWriter writer;
+
+        try {
+            // Resumes from a checkpoint if a previous analysis of the video was killed, unless in coverage order
+            writer = new ResultWriter(outPath, videoName, totalFrames, tracking.getMaxGap(), coverageOrder);
+        } catch (IOException e) {
+            Log.e(I_TAG, String.format("Failed to create results file for %s: %s\n  %s",
+                    videoName, e.getClass().getSimpleName(), e.getMessage()));
+            return false;
+        }
+
+        if (!job.isComplete()) {
+            // Negative divisors guarantee complete processing, so only stop early otherwise
+            token.setDeadline(job.timeout);
+        }
+
+        int threadCount = maxThreads > 0 ? Math.min(maxThreads, getThreadCount()) : getThreadCount();
+        // Frames are scaled before being queued, so each queued frame holds a scaled ARGB_8888 bitmap
+        long frameBytes = job.scaledWidth * job.scaledHeight * 4L;
+        int queueCapacity = FrameExecutor.getCapacity(HardwareInfo.getAvailRam(appContext), frameBytes, threadCount);
 
-        ExecutorService frameExecutor = Executors.newFixedThreadPool(THREAD_NUM);
+        FrameExecutor frameExecutor = new FrameExecutor(threadCount, queueCapacity, queuePolicy);
         ExecutorService loopExecutor = Executors.newSingleThreadExecutor();
-        loopExecutor.submit(processFramesLoop(retriever, totalFrames, frames, frameExecutor));
+        loopExecutor.submit(processFramesLoop(job, retriever, writer, tracking, frameExecutor));
 
         boolean complete = false;
 
-        if (timeout == null) {
-            if (stopDivisor <= 0) {
-                // Ten minutes in milliseconds
-                timeout = 600000L;
-            } else {
-                FfmpegTools.setDuration(inPath);
-                timeout = (long) (FfmpegTools.getDurationMillis() / stopDivisor);
-            }
-        }
-
         try {
             loopExecutor.shutdown();
-            complete = loopExecutor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+            complete = loopExecutor.awaitTermination(job.timeout, TimeUnit.MILLISECONDS);
 
-            if (stopDivisor < 0) {
-                // Guarantee complete processing
-                frameExecutor.shutdown();
-                //noinspection ResultOfMethodCallIgnored
-                frameExecutor.awaitTermination(timeout * 60, TimeUnit.MILLISECONDS);
-            }
+            // All frames have been queued, wait for queued frames to finish within the remaining time
+            frameExecutor.shutdown();
+            long remaining = job.isComplete() ? job.timeout * 60 :
+                    Math.max(job.timeout - Duration.between(startTime, Instant.now()).toMillis(), 0);
+            complete = frameExecutor.awaitTermination(remaining, TimeUnit.MILLISECONDS) && complete;
         } catch (InterruptedException e) {
             Log.e(I_TAG, String.format("Interrupted analysis of %s:\n  %s", videoName, e.getMessage()));
         }
 
+        int droppedFrames = 0;
         if (!complete) {
-            frameExecutor.shutdown();
-            int completedFrames = frames.size();
-            Log.w(I_TAG, String.format("Stopped processing early for %s at %s frames, %s remaining",
-                    videoName, completedFrames, totalFrames - completedFrames));
+            // Stop decoding and drop queued frames, so that the next video gets the cores
+            token.setDeadline(0);
+            loopExecutor.shutdownNow();
+            droppedFrames = frameExecutor.shutdownNow();
         }
 
-        synchronized (frames) {
-            JsonManager.writeResultsToJson(outPath, frames);
+        // Frames completed so far have already been written, closing writes any frames left in the reorder buffer
+        writer.close();
+
+        if (token.isCancelled()) {
+            Log.w(I_TAG, String.format("Cancelled analysis of %s", videoName));
+            if (!new File(outPath).delete()) {
+                Log.w(TAG, String.format("Could not delete partial results of %s", videoName));
+            }
+            return false;
         }
 
-        frameExecutor.shutdown();
+        if (!complete) {
+            int completedFrames = writer.getWrittenCount();
+            Log.w(I_TAG, String.format("Stopped processing early for %s at %s frames, %s remaining, %s queued",
+                    videoName, completedFrames, totalFrames - completedFrames, droppedFrames));
+        }
 
         String time = TimeManager.getDurationString(startTime);
         long powerConsumption = PowerMonitor.getPowerConsumption(startPower);
@@ -184,31 +316,178 @@ public abstract class VideoAnalysis {
         String endString = String.format(Locale.ENGLISH, "Completed analysis of %s in %ss, %dnW consumed",
                 videoName, time, powerConsumption);
         Log.d(I_TAG, endString);
+        Log.d(TAG, String.format("Frame queue of %s: %s", videoName, frameExecutor.getSummary()));
+        Log.d(TAG, String.format("Results of %s: %s", videoName, writer.getSummary()));
+        if (motionThreshold > 0) {
+            Log.d(I_TAG, String.format("Motion gate of %s: %s of %s inferences saved",
+                    videoName, writer.getCarriedCount(), totalFrames));
+        }
+        if (tracking.isEnabled()) {
+            Log.d(I_TAG, String.format("Tracking of %s: %s of %s frames tracked, %s early re-detections",
+                    videoName, writer.getTrackedCount(), totalFrames, tracking.getRedetectCount()));
+        }
+        Log.d(TAG, job.stats.getSummary(videoName));
+        Log.d(TAG, PipelineStats.getAggregate().getSummary("all videos"));
         PowerMonitor.printSummary();
+        return true;
     }
 
-    private Runnable processFramesLoop(MediaMetadataRetriever retriever, int totalFrames,
-                                       List<Frame> frames, ExecutorService executor) {
-        return () -> {
-            String videoWidthString = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
-            String videoHeightString = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT);
-            int videoWidth = Integer.parseInt(videoWidthString);
-            int videoHeight = Integer.parseInt(videoHeightString);
-
-            float scaleFactor = getScaleFactor(videoWidth);
-            int scaledWidth = (int) (videoWidth / scaleFactor);
-            int scaledHeight = (int) (videoHeight / scaleFactor);
+    private Runnable processFramesLoop(AnalysisContext job, MediaMetadataRetriever retriever, ResultWriter writer,
+                                       TrackingSchedule tracking, FrameExecutor executor) {
+        final CancellationToken token = job.token;
+        final PipelineStats stats = job.stats;
 
-            setup(scaledWidth, scaledHeight);
+        return () -> {
+            MotionGate motionGate = new MotionGate(coverageOrder ? 0 : motionThreshold);
+            // Frame whose result is reused by unchanged frames, i.e. the last frame that was analysed
+            AtomicInteger referenceFrame = new AtomicInteger(-1);
+            BitmapPool bitmapPool = BitmapPool.getInstance();
+            Canvas canvas = new Canvas();
+            Rect scaledRect = new Rect(0, 0, job.scaledWidth, job.scaledHeight);
+            // Decoding happens between callbacks, so it is timed from the end of the previous callback
+            long[] callbackEnd = {System.nanoTime()};
+
+            FrameDecoder.FrameCallback submitFrame = (bitmap, k) -> {
+                long stageStart = stats.record(PipelineStats.Stage.DECODE, callbackEnd[0]);
+
+                if (bitmap == null) {
+                    Log.w(TAG, String.format("Could not retrieve frame %s", k));
+                    writer.skip(k);
+                    tracking.onResult(k, null);
+                    callbackEnd[0] = System.nanoTime();
+                    return;
+                }
+
+                // Equivalent to Bitmap.createScaledBitmap without filtering, but reuses pooled bitmaps
+                Bitmap scaled = bitmapPool.acquire(job.scaledWidth, job.scaledHeight, Bitmap.Config.ARGB_8888);
+                canvas.setBitmap(scaled);
+                canvas.drawBitmap(bitmap, null, scaledRect, null);
+                canvas.setBitmap(null);
+                bitmapPool.release(bitmap);
+                stageStart = stats.record(PipelineStats.Stage.SCALE, stageStart);
+
+                if (motionGate.isUnchanged(scaled)) {
+                    writer.carry(k, referenceFrame.get());
+                    tracking.onResult(k, null);
+                    bitmapPool.release(scaled);
+                    callbackEnd[0] = System.nanoTime();
+                    return;
+                }
+
+                boolean queued = executor.execute(() -> {
+                    Frame frame = null;
+                    try {
+                        if (!token.shouldStop()) {
+                            frame = processFrame(scaled, k, job);
+                        }
+                    } finally {
+                        tracking.onResult(k, frame);
+                        bitmapPool.release(scaled);
+                        long writeStart = System.nanoTime();
+                        writer.complete(k, frame);
+                        stats.record(PipelineStats.Stage.WRITE, writeStart);
+                    }
+                });
+                // Includes time blocked on a full queue
+                stats.record(PipelineStats.Stage.ENQUEUE, stageStart);
+
+                if (queued) {
+                    referenceFrame.set(k);
+                } else {
+                    bitmapPool.release(scaled);
+                    writer.skip(k);
+                    tracking.onResult(k, null);
+                    // Dropped frames have no result to reuse
+                    motionGate.reset();
+                }
+                callbackEnd[0] = System.nanoTime();
+            };
+
+            // Frames between tracking key frames are never converted, their results are predicted by the writer
+            int startIndex = writer.getStartIndex();
+            IntPredicate analyseFrame = i -> {
+                if (i < startIndex) {
+                    // Restored from a checkpoint
+                    return false;
+                }
+                if (tracking.isKeyFrame(i)) {
+                    return true;
+                }
+                writer.track(i);
+                return false;
+            };
+
+            if (coverageOrder) {
+                submitInCoverageOrder(job, retriever, submitFrame, analyseFrame, bitmapPool);
+                return;
+            }
+            int decodedFrames = 0;
+
+            try (FrameDecoder decoder = new FrameDecoder(job.inPath, bitmapPool)) {
+                try {
+                    decoder.decode(submitFrame, analyseFrame, Integer.MAX_VALUE, token);
+                } finally {
+                    decodedFrames = decoder.getDecodedCount();
+                }
+            } catch (Exception e) {
+                Log.w(I_TAG, String.format("Decoding failed at frame %s, falling back to retriever: %s\n  %s",
+                        decodedFrames, e.getClass().getSimpleName(), e.getMessage()));
+            }
 
             // MediaMetadataRetriever is inconsistent, seems to only reliably with x264, may fail with other codecs
-            for (int i = 0; i < totalFrames; i++) {
-                final Bitmap bitmap = retriever.getFrameAtIndex(i);
-                final int k = i;
-                executor.execute(() -> frames.add(processFrame(
-                        Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, false), k, scaleFactor)
-                ));
+            for (int i = decodedFrames; i < job.totalFrames && !token.shouldStop(); i++) {
+                if (analyseFrame.test(i)) {
+                    submitFrame.onFrame(retriever.getFrameAtIndex(i), i);
+                }
             }
         };
     }
+
+    /**
+     * Submits frames pass by pass in coarse-to-fine order, so that frames completed before the deadline are evenly
+     * spread over the video instead of all being at the start.
+     * Each frame is reached by seeking to the closest sync frame before it, so early passes, whose frames are far
+     * apart, only decode the frames leading up to theirs instead of the whole video.
+     */
+    private void submitInCoverageOrder(AnalysisContext job, MediaMetadataRetriever retriever,
+                                       FrameDecoder.FrameCallback submitFrame, IntPredicate analyseFrame,
+                                       BitmapPool bitmapPool) {
+        CancellationToken token = job.token;
+        CoverageOrder order = new CoverageOrder(job.totalFrames);
+        int pass = 0;
+        // Frames of the current pass before this one have already been submitted
+        int nextIndex = 0;
+
+        try (FrameDecoder decoder = new FrameDecoder(job.inPath, bitmapPool)) {
+            for (; pass < order.getPassCount() && !token.shouldStop(); pass++) {
+                int step = order.getStep(pass);
+                int lastIndex = order.getLastIndex(pass);
+
+                for (nextIndex = order.getFirstIndex(pass); nextIndex <= lastIndex && !token.shouldStop();
+                     nextIndex += step) {
+                    if (!analyseFrame.test(nextIndex)) {
+                        continue;
+                    }
+                    final int target = nextIndex;
+                    decoder.seekTo(target);
+                    decoder.decode(submitFrame, i -> i == target, target, token);
+                }
+            }
+        } catch (Exception e) {
+            Log.w(I_TAG, String.format("Decoding failed at pass %s, frame %s, falling back to retriever: %s\n  %s",
+                    pass, nextIndex, e.getClass().getSimpleName(), e.getMessage()));
+        }
+
+        for (; pass < order.getPassCount() && !token.shouldStop(); pass++) {
+            int step = order.getStep(pass);
+            int first = nextIndex > order.getFirstIndex(pass) ? nextIndex : order.getFirstIndex(pass);
+
+            for (int i = first; i < job.totalFrames && !token.shouldStop(); i += step) {
+                if (analyseFrame.test(i)) {
+                    submitFrame.onFrame(retriever.getFrameAtIndex(i), i);
+                }
+            }
+            nextIndex = 0;
+        }
+    }
 }
@@ -0,0 +1,77 @@
+package com.example.edgedashanalytics.util.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class JsonManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File createSegment(String name, String json) throws IOException {
+        File file = folder.newFile(name);
+        FileUtils.writeStringToFile(file, json, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    @Test
+    public void copyFrames_shiftsFrameIndexes() throws IOException {
+        File segment = createSegment("outer!001!002.json", "[" +
+                "{\"frame\":0,\"hazards\":[]}," +
+                "{\"frame\":1,\"carried\":true,\"hazards\":[{\"category\":\"car\",\"frame\":7}]}," +
+                "{\"frame\":3,\"hazards\":[]}]");
+        File merged = new File(folder.getRoot(), "outer.json");
+        int nextOffset;
+
+        try (JsonGenerator generator = JsonManager.createGenerator(merged.getAbsolutePath())) {
+            generator.writeStartArray();
+            nextOffset = JsonManager.copyFrames(segment.getAbsolutePath(), generator, 100);
+            generator.writeEndArray();
+        }
+
+        // One after the last frame with results, frames missing from the end of the segment are unknown
+        assertEquals(104, nextOffset);
+
+        JsonNode frames = new ObjectMapper().readTree(merged);
+        assertEquals(3, frames.size());
+        assertEquals(100, frames.get(0).get("frame").asInt());
+        assertEquals(101, frames.get(1).get("frame").asInt());
+        assertEquals(103, frames.get(2).get("frame").asInt());
+
+        // Only the frame indexes of frames are shifted, other fields are copied as they are
+        assertTrue(frames.get(1).get("carried").asBoolean());
+        JsonNode hazard = frames.get(1).get("hazards").get(0);
+        assertEquals("car", hazard.get("category").asText());
+        assertEquals(7, hazard.get("frame").asInt());
+        assertFalse(frames.get(0).has("carried"));
+    }
+
+    @Test
+    public void copyFrames_skipsEmptyResults() throws IOException {
+        File segment = createSegment("outer!000!002.json", "");
+        File merged = new File(folder.getRoot(), "outer.json");
+        int nextOffset;
+
+        try (JsonGenerator generator = JsonManager.createGenerator(merged.getAbsolutePath())) {
+            generator.writeStartArray();
+            nextOffset = JsonManager.copyFrames(segment.getAbsolutePath(), generator, 50);
+            generator.writeEndArray();
+        }
+
+        assertEquals(50, nextOffset);
+        assertEquals(0, new ObjectMapper().readTree(merged).size());
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.edgedashanalytics.util.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class SegmentManifestTest {
+    private static SegmentManifest createManifest() {
+        return new SegmentManifest("video", Arrays.asList(
+                new SegmentManifest.Segment("video!000!003.mp4", 30, 0, 1000),
+                new SegmentManifest.Segment("video!001!003.mp4", 45, 1000, 2500),
+                new SegmentManifest.Segment("video!002!003.mp4", 20, 2500, 3200)));
+    }
+
+    @Test
+    public void frameOffset_sumsEarlierSegments() {
+        SegmentManifest manifest = createManifest();
+
+        assertEquals(0, manifest.getFrameOffset(0));
+        assertEquals(30, manifest.getFrameOffset(1));
+        assertEquals(75, manifest.getFrameOffset(2));
+        // One after the last frame of the video
+        assertEquals(95, manifest.getFrameOffset(3));
+    }
+
+    @Test
+    public void frameOffset_survivesSerialisation() {
+        String json = JsonManager.writeToString(createManifest());
+        assertNotNull(json);
+
+        SegmentManifest manifest = (SegmentManifest) JsonManager.readFromString(json, SegmentManifest.class);
+        assertNotNull(manifest);
+        assertEquals("video", manifest.video);
+        assertEquals(3, manifest.segments.size());
+        assertEquals(75, manifest.getFrameOffset(2));
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.edgedashanalytics.util.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class SegmentMergerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Joins parts the way the merger does once every segment has been rewritten
+     */
+    private String concatenate(String... parts) throws IOException {
+        File merged = folder.newFile();
+
+        try (FileChannel out = new FileOutputStream(merged).getChannel()) {
+            out.write(ByteBuffer.wrap(new byte[]{'['}));
+            boolean first = true;
+
+            for (String part : parts) {
+                File partFile = folder.newFile();
+                FileUtils.writeStringToFile(partFile, part, StandardCharsets.UTF_8);
+
+                if (SegmentMerger.appendElements(partFile, out, first)) {
+                    first = false;
+                }
+            }
+            out.write(ByteBuffer.wrap(new byte[]{']'}));
+        }
+        return FileUtils.readFileToString(merged, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void appendElements_joinsParts() throws IOException {
+        assertEquals("[{\"frame\":0},{\"frame\":1},{\"frame\":2}]",
+                concatenate("[{\"frame\":0},{\"frame\":1}]", "[{\"frame\":2}]"));
+    }
+
+    @Test
+    public void appendElements_skipsEmptyParts() throws IOException {
+        assertEquals("[{\"frame\":0},{\"frame\":2}]",
+                concatenate("[]", "[{\"frame\":0}]", "[]", "[{\"frame\":2}]", "[]"));
+        assertEquals("[]", concatenate("[]", "[]"));
+    }
+
+    @Test
+    public void appendElements_reportsEmptyPart() throws IOException {
+        File partFile = folder.newFile();
+        FileUtils.writeStringToFile(partFile, "[]", StandardCharsets.UTF_8);
+        File merged = folder.newFile();
+
+        try (FileChannel out = new FileOutputStream(merged).getChannel()) {
+            assertFalse(SegmentMerger.appendElements(partFile, out, true));
+            FileUtils.writeStringToFile(partFile, "[{\"frame\":0}]", StandardCharsets.UTF_8);
+            assertTrue(SegmentMerger.appendElements(partFile, out, true));
+        }
+        assertEquals("{\"frame\":0}", FileUtils.readFileToString(merged, StandardCharsets.UTF_8));
+    }
+}
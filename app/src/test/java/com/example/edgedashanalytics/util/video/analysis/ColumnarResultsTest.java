@@ -0,0 +1,153 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.PointF;
+import android.graphics.Rect;
+
+import com.example.edgedashanalytics.util.file.JsonManager;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ColumnarResultsTest {
+    private static final float DELTA = 1e-6f;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Constructors of the stubbed android.jar don't set fields, so they are set directly
+    private static PointF point(float x, float y) {
+        PointF point = new PointF();
+        point.x = x;
+        point.y = y;
+        return point;
+    }
+
+    private static Rect rect(int left, int top, int right, int bottom) {
+        Rect rect = new Rect();
+        rect.left = left;
+        rect.top = top;
+        rect.right = right;
+        rect.bottom = bottom;
+        return rect;
+    }
+
+    private static int[] getBox(ColumnarResults results, int item) {
+        int[] box = new int[4];
+        for (int edge = 0; edge < box.length; edge++) {
+            box[edge] = results.getBoxEdge(item, edge);
+        }
+        return box;
+    }
+
+    private ColumnarResults convert(String jsonName, List<Frame> frames) throws IOException {
+        File json = folder.newFile(jsonName);
+        File columnar = new File(folder.getRoot(), jsonName + ".col");
+        FileUtils.writeStringToFile(json, JsonManager.writeToString(frames), StandardCharsets.UTF_8);
+
+        assertTrue(ColumnarResults.fromJson(json.getAbsolutePath(), columnar.getAbsolutePath()));
+        return ColumnarResults.open(columnar.getAbsolutePath());
+    }
+
+    @Test
+    public void innerResults_roundTrip() throws IOException {
+        InnerFrame first = new InnerFrame(0, true, 1.5f, Arrays.asList(
+                new KeyPoint(BodyPart.NOSE, point(12.5f, 40f), 0.9f),
+                new KeyPoint(BodyPart.RIGHT_WRIST, point(-3f, 7.25f), 0.4f)));
+        InnerFrame second = new InnerFrame(2, false, 0.6f, Collections.singletonList(
+                new KeyPoint(BodyPart.LEFT_SHOULDER, point(100f, 200f), 0.6f)));
+        second.carried = true;
+
+        ColumnarResults results = convert("inner.json", Arrays.asList(first, second));
+
+        assertTrue(results.isInner());
+        assertEquals(2, results.getFrameCount());
+
+        assertEquals(0, results.getFrameIndex(0));
+        assertEquals(2, results.getItemCount(0));
+        assertTrue(results.isDistracted(0));
+        assertFalse(results.isCarried(0));
+        assertEquals(1.5f, results.getFullScore(0), DELTA);
+        assertEquals(BodyPart.NOSE, results.getBodyPart(0));
+        assertEquals(12.5f, results.getX(0), DELTA);
+        assertEquals(40f, results.getY(0), DELTA);
+        assertEquals(0.9f, results.getItemScore(0), DELTA);
+        assertEquals(BodyPart.RIGHT_WRIST, results.getBodyPart(1));
+        assertEquals(-3f, results.getX(1), DELTA);
+        assertEquals(7.25f, results.getY(1), DELTA);
+
+        assertEquals(2, results.getFrameIndex(1));
+        assertEquals(1, results.getItemCount(1));
+        assertEquals(2, results.getFirstItem(1));
+        assertFalse(results.isDistracted(1));
+        assertTrue(results.isCarried(1));
+        assertFalse(results.isTracked(1));
+        assertEquals(BodyPart.LEFT_SHOULDER, results.getBodyPart(2));
+        assertEquals(200f, results.getY(2), DELTA);
+    }
+
+    @Test
+    public void outerResults_roundTrip() throws IOException {
+        OuterFrame first = new OuterFrame(0, Arrays.asList(
+                new Hazard("car", 0.8f, true, rect(10, 20, 110, 90)),
+                new Hazard("person", 0.5f, false, rect(300, 40, 340, 160))));
+        OuterFrame second = new OuterFrame(1, Collections.emptyList());
+        second.tracked = true;
+        OuterFrame third = new OuterFrame(5, Collections.singletonList(
+                new Hazard("car", 0.7f, false, rect(-5, 0, 60, 45))));
+
+        ColumnarResults results = convert("outer.json", Arrays.asList(first, second, third));
+
+        assertFalse(results.isInner());
+        assertEquals(3, results.getFrameCount());
+
+        assertEquals(2, results.getItemCount(0));
+        assertEquals("car", results.getCategory(0));
+        assertTrue(results.isDanger(0));
+        assertEquals(0.8f, results.getItemScore(0), DELTA);
+        assertArrayEquals(new int[]{10, 20, 110, 90}, getBox(results, 0));
+        assertEquals("person", results.getCategory(1));
+        assertFalse(results.isDanger(1));
+        assertArrayEquals(new int[]{300, 40, 340, 160}, getBox(results, 1));
+
+        assertEquals(1, results.getFrameIndex(1));
+        assertEquals(0, results.getItemCount(1));
+        assertTrue(results.isTracked(1));
+
+        assertEquals(5, results.getFrameIndex(2));
+        assertEquals(1, results.getItemCount(2));
+        assertEquals(2, results.getFirstItem(2));
+        assertEquals("car", results.getCategory(2));
+        assertArrayEquals(new int[]{-5, 0, 60, 45}, getBox(results, 2));
+    }
+
+    @Test
+    public void emptyResults_areNotConverted() throws IOException {
+        File json = folder.newFile("inner.json");
+
+        assertFalse(ColumnarResults.fromJson(json.getAbsolutePath(), json.getAbsolutePath() + ".col"));
+    }
+
+    @Test
+    public void truncatedResults_areNotConverted() throws IOException {
+        File json = folder.newFile("outer.json");
+        File columnar = new File(folder.getRoot(), "outer.col");
+        FileUtils.writeStringToFile(json, "[{\"frame\":0,\"hazards\":[]},{\"frame\":1,", StandardCharsets.UTF_8);
+
+        assertFalse(ColumnarResults.fromJson(json.getAbsolutePath(), columnar.getAbsolutePath()));
+        assertFalse(columnar.exists());
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrencyTunerTest {
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Test
+    public void shortWindow_keepsLevel() {
+        ConcurrencyTuner tuner = new ConcurrencyTuner(4, 0);
+        tuner.resetWindow(0, 0);
+
+        assertEquals(1, tuner.update(1000, WINDOW_NANOS / 2));
+    }
+
+    @Test
+    public void fasterLevels_areKept() {
+        ConcurrencyTuner tuner = new ConcurrencyTuner(3, 0);
+        tuner.resetWindow(0, 0);
+
+        // 10 fps at one video, two videos are unmeasured
+        assertEquals(2, tuner.update(100, WINDOW_NANOS));
+        // 20 fps at two videos
+        assertEquals(3, tuner.update(300, 2 * WINDOW_NANOS));
+        // 15 fps at three videos, two videos were faster
+        assertEquals(2, tuner.update(450, 3 * WINDOW_NANOS));
+        // Still 20 fps at two videos, neither neighbour was faster
+        assertEquals(2, tuner.update(650, 4 * WINDOW_NANOS));
+        assertEquals(2, tuner.getLevel());
+    }
+
+    @Test
+    public void slowerLevel_fallsBack() {
+        ConcurrencyTuner tuner = new ConcurrencyTuner(2, 0);
+        tuner.resetWindow(0, 0);
+
+        assertEquals(2, tuner.update(200, WINDOW_NANOS));
+        assertEquals(1, tuner.update(300, 2 * WINDOW_NANOS));
+    }
+
+    @Test
+    public void resetWindow_discardsFramesBeforeIt() {
+        ConcurrencyTuner tuner = new ConcurrencyTuner(2, 0);
+        tuner.resetWindow(0, 0);
+
+        assertEquals(2, tuner.update(200, WINDOW_NANOS));
+        // The time that the queue was empty for isn't counted against two videos, which then measure 25 fps
+        tuner.resetWindow(200, 5 * WINDOW_NANOS);
+        assertEquals(2, tuner.update(450, 6 * WINDOW_NANOS));
+    }
+
+    @Test
+    public void maxLevel_isAtLeastOne() {
+        ConcurrencyTuner tuner = new ConcurrencyTuner(0, 0);
+        tuner.resetWindow(0, 0);
+
+        assertEquals(1, tuner.getLevel());
+        assertEquals(1, tuner.update(100, WINDOW_NANOS));
+        assertEquals(1, tuner.update(200, 2 * WINDOW_NANOS));
+    }
+}
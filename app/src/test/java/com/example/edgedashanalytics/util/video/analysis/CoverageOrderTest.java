@@ -0,0 +1,67 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CoverageOrderTest {
+    private static final int[] TOTALS = {1, 2, 7, 8, 15, 16, 17, 100, 1000, 1801};
+
+    @Test
+    public void passes_containEveryFrameOnce() {
+        for (int total : TOTALS) {
+            CoverageOrder order = new CoverageOrder(total);
+
+            for (int i = 0; i < total; i++) {
+                int passes = 0;
+                for (int pass = 0; pass < order.getPassCount(); pass++) {
+                    passes += order.contains(pass, i) ? 1 : 0;
+                }
+                assertEquals(String.format("Frame %s of %s", i, total), 1, passes);
+            }
+        }
+    }
+
+    @Test
+    public void passes_areEvenlySpaced() {
+        for (int total : TOTALS) {
+            CoverageOrder order = new CoverageOrder(total);
+
+            for (int pass = 0; pass < order.getPassCount(); pass++) {
+                int last = -1;
+                for (int i = order.getFirstIndex(pass); i < total; i += order.getStep(pass)) {
+                    assertTrue(order.contains(pass, i));
+                    last = i;
+                }
+                assertEquals(String.format("Pass %s of %s", pass, total), last, order.getLastIndex(pass));
+            }
+        }
+    }
+
+    @Test
+    public void firstPass_coversWholeVideo() {
+        for (int total : TOTALS) {
+            CoverageOrder order = new CoverageOrder(total);
+            int frames = (order.getLastIndex(0) - order.getFirstIndex(0)) / order.getStep(0) + 1;
+
+            assertEquals(0, order.getFirstIndex(0));
+            assertTrue(frames >= Math.min(total, 8));
+            // Frames after the last frame of the first pass are filled in by later passes
+            assertTrue(total - 1 - order.getLastIndex(0) < order.getStep(0));
+        }
+    }
+
+    @Test
+    public void laterPasses_halveStride() {
+        CoverageOrder order = new CoverageOrder(100);
+
+        assertEquals(4, order.getPassCount());
+        assertEquals(8, order.getStep(0));
+        for (int pass = 1; pass < order.getPassCount(); pass++) {
+            // Each pass takes the frames halfway between the frames of all earlier passes
+            assertEquals(order.getStep(0) >> pass, order.getFirstIndex(pass));
+            assertEquals(order.getFirstIndex(pass) * 2, order.getStep(pass));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.edgedashanalytics.util.video.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void emptyHistogram_returnsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void smallValues_areExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 10; i++) {
+            histogram.record(3000);
+        }
+
+        assertEquals(10, histogram.getCount());
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(3, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentiles_areWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000L);
+        }
+
+        for (double percentile : new double[]{1, 25, 50, 90, 99}) {
+            long expected = (long) Math.ceil(percentile * 10);
+            long actual = histogram.getPercentile(percentile);
+
+            assertTrue(String.format("p%s: %s", percentile, actual), actual >= expected);
+            assertTrue(String.format("p%s: %s", percentile, actual), actual <= expected * 1.125);
+        }
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentiles_doNotExceedMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10_000_000_000L);
+
+        assertEquals(10_000_000, histogram.getPercentile(50));
+        assertEquals(10_000_000, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void negativeValues_areRecordedAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5000);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+}